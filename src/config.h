@@ -22,3 +22,6 @@
 #pragma once
 #define IS_2BPP
 // #define IS_ADPCM
+// screen maps the command stream can save and restore; see video_quantizer --screen-cache-slots
+// each slot takes 1136 bytes of RAM, allocated by the linker; TilePacker.MAX_SCREEN_CACHE_SLOTS must match
+#define SCREEN_CACHE_SLOTS 1
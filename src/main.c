@@ -26,6 +26,9 @@
 #include "config.h"
 #include "fs.h"
 
+// highest command stream version understood; see TilePacker.COMMAND_VERSION_*
+#define COMMAND_STREAM_VERSION 3
+
 uint8_t current_command_bank;
 uint16_t current_command_pos = 0x0000;
 
@@ -36,6 +39,12 @@ volatile uint16_t current_audio_pos = 0x0000;
 #define screen_a ((uint16_t*) 0x800);
 #define screen_b ((uint16_t*) 0x1000);
 #define SCREEN_COPY_BYTES (sizeof(uint16_t) * (32 * 17 + 24))
+#define SCREEN_CACHE_WORDS (SCREEN_COPY_BYTES / sizeof(uint16_t))
+
+_Static_assert(SCREEN_CACHE_SLOTS >= 1, "the screen cache needs at least one slot");
+
+// saved screen maps; allocated by the linker, which checks that they fit in RAM alongside the stack
+static uint16_t screen_cache[SCREEN_CACHE_SLOTS][SCREEN_CACHE_WORDS];
 
 uint16_t *curr_screen = screen_a;
 uint16_t *next_screen = screen_b;
@@ -85,6 +94,16 @@ bool parse_until_next_frame(void) {
 			uint16_t tile_data = (cmd2 >> 2) | ((cmd & 0x0F) << 6) | ((cmd & 0x30) << 10);
 			copy_global_tile(global_tile_bank, global_tile_ofs, tile_data & 0x1FF);
 			next_screen[tile_pos++] = tile_data;
+		} else if (cmd <= 0xDF) {
+			// place 2-17 copies of tile_data (0xC0), or tile_data with consecutive slots (0xD0)
+			uint8_t count = (cmd & 0x0F) + 2;
+			uint8_t cmd2 = MEM_ROM_BANK0[current_command_pos++];
+			uint16_t tile_data = MEM_ROM_BANK0[current_command_pos++] | ((cmd2 & 0x03) << 8) | ((cmd2 & 0x0C) << 12);
+			uint16_t tile_step = (cmd & 0x10) >> 4;
+			do {
+				next_screen[tile_pos++] = tile_data;
+				tile_data += tile_step;
+			} while (--count);
 		} else if (cmd <= 0xEF) {
 			// place tile_data
 			uint16_t tile_data = MEM_ROM_BANK0[current_command_pos++] | ((cmd & 0x03) << 8) | ((cmd & 0x0C) << 12);
@@ -95,6 +114,27 @@ bool parse_until_next_frame(void) {
 		} else if (cmd == 0xF5) {
 			// place empty inv. tile
 			next_screen[tile_pos++] = (1 << 9);
+		} else if (cmd == 0xF2) {
+			// stream version header
+			if (MEM_ROM_BANK0[current_command_pos++] > COMMAND_STREAM_VERSION) {
+				outportb(IO_INT_ENABLE, INTR_ENABLE_VBLANK);
+				return true;
+			}
+		} else if (cmd == 0xF3) {
+			// extended command
+			uint8_t cmd2 = MEM_ROM_BANK0[current_command_pos++];
+			uint8_t arg = MEM_ROM_BANK0[current_command_pos++];
+			if (cmd2 == 0x00) {
+				// end frame, held for more than 7 vblanks
+				next_vblank_ticks = arg;
+				break;
+			} else if (cmd2 == 0x01) {
+				// save screen map to cache slot
+				memcpy(screen_cache[arg], next_screen, SCREEN_COPY_BYTES);
+			} else if (cmd2 == 0x02) {
+				// restore screen map from cache slot
+				memcpy(next_screen, screen_cache[arg], SCREEN_COPY_BYTES);
+			}
 		} else if (cmd == 0xF1) {
 			// switch bank
 			current_command_bank++;
@@ -192,15 +232,17 @@ int main(void) {
 		// copy curr to next
 		memcpy(next_screen, curr_screen, SCREEN_COPY_BYTES);
 
-		// draw next frame
-		if (parse_until_next_frame()) break;
+		// draw next frame, while the one just flipped is shown for its own vblank count
+		uint16_t shown_ticks = next_vblank_ticks;
+		bool done = parse_until_next_frame();
 
-		while (vblank_ticks < next_vblank_ticks) {
+		while (vblank_ticks < shown_ticks) {
 			__asm volatile("hlt");
 		}
 		__asm volatile ( "cli" ::: "memory" );
-		vblank_ticks -= next_vblank_ticks;
+		vblank_ticks -= shown_ticks;
 		__asm volatile ( "sti" ::: "memory" );
+		if (done) break;
 	}
 
 	vblank_ticks = 0;
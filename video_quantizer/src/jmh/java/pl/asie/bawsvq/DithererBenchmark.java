@@ -0,0 +1,72 @@
+package pl.asie.bawsvq;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dithering throughput, and what each ditherer costs downstream: the tiles, uploads and command bytes
+ * of packing a synthetic clip dithered with it, printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DithererBenchmark {
+	private static final int FRAMES = 180;
+
+	@Param({"4x4", "floyd-steinberg", "atkinson", "temporal:4x4", "temporal:floyd-steinberg"})
+	public String ditherer;
+	@Param({"4"})
+	public int steps;
+
+	private ImageQuantizer quantizer;
+	private float[][] tones;
+	private QuantizedImage previous;
+	private int index;
+
+	@Setup
+	public void setup() throws IOException {
+		quantizer = new ImageQuantizer(192, 144, steps, Ditherer.byName(ditherer, 0.25f));
+		tones = new float[FRAMES][];
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			for (int i = 0; i < FRAMES; i++) {
+				tones[i] = quantizer.computeTones(SyntheticFrames.samples(SyntheticFrames.generate(i, 192, 144)), pool);
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		TilePacker packer = pack();
+		System.out.println();
+		System.out.println(ditherer + ": " + packer.getGlobalTileCount() + " tiles, " + packer.getAllocator().getUploads() + " uploads, "
+				+ packer.getCommandStreamSize() + " command bytes");
+	}
+
+	private TilePacker pack() throws IOException {
+		TilePacker packer = new TilePacker(24, 18, steps, (12000.0 / 159.0) / 30.0);
+		QuantizedImage last = null;
+		for (float[] frame : tones) {
+			last = quantizer.dither(frame, last);
+			packer.addImage(last);
+		}
+		packer.finish();
+		return packer;
+	}
+
+	@Benchmark
+	public QuantizedImage dither() {
+		// temporal ditherers see the frames in order, as when encoding
+		int i = index++ % FRAMES;
+		previous = quantizer.dither(tones[i], i == 0 ? null : previous);
+		return previous;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public TilePacker ditherAndPack() throws IOException {
+		return pack();
+	}
+}
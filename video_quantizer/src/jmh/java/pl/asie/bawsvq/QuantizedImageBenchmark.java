@@ -0,0 +1,68 @@
+package pl.asie.bawsvq;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QuantizedImageBenchmark {
+	private QuantizedImage frame;
+	private QuantizedImage tile;
+	private final long[] packed = new long[2];
+
+	@Setup
+	public void setup() {
+		ImageQuantizer quantizer = new ImageQuantizer(192, 144, 4, OrderedDitherMatrix.MATRIX_4x4);
+		frame = quantizer.quantize(SyntheticFrames.generate(45, 480, 360));
+		tile = frame.subview(64, 64, 8, 8);
+		PackedTile.pack(frame, 64, 64, packed, 0);
+	}
+
+	@Benchmark
+	public QuantizedImage subview() {
+		return frame.subview(64, 64, 8, 8);
+	}
+
+	@Benchmark
+	public QuantizedImage flipHorizontal() {
+		return tile.flipHorizontal();
+	}
+
+	@Benchmark
+	public QuantizedImage flipVertical() {
+		return tile.flipVertical();
+	}
+
+	@Benchmark
+	public QuantizedImage invert() {
+		return tile.invert();
+	}
+
+	@Benchmark
+	public QuantizedImage invertFrame() {
+		return frame.invert();
+	}
+
+	@Benchmark
+	public int tileHashCode() {
+		return tile.hashCode();
+	}
+
+	@Benchmark
+	public void packTile(Blackhole bh) {
+		PackedTile.pack(frame, 64, 64, packed, 0);
+		bh.consume(packed[0]);
+		bh.consume(packed[1]);
+	}
+
+	@Benchmark
+	public void packedTransforms(Blackhole bh) {
+		for (int t = 0; t < PackedTile.TRANSFORM_COUNT; t++) {
+			bh.consume(PackedTile.transform(packed[0], t, -1L));
+			bh.consume(PackedTile.transform(packed[1], t, -1L));
+		}
+	}
+}
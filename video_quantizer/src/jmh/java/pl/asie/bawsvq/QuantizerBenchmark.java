@@ -0,0 +1,53 @@
+package pl.asie.bawsvq;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QuantizerBenchmark {
+	@Param({"4x4", "8x8", "2x2", "none"})
+	public String matrix;
+	@Param({"4", "2"})
+	public int steps;
+	@Param({"192x144", "480x360"})
+	public String sourceSize;
+	@Param({"auto", "scalar"})
+	public String kernels;
+
+	private ImageQuantizer quantizer;
+	private BufferedImage[] sources;
+	private ForkJoinPool pool;
+	private int index;
+
+	@Setup
+	public void setup() {
+		String[] size = sourceSize.split("x");
+		quantizer = new ImageQuantizer(192, 144, steps, OrderedDitherMatrix.byName(matrix),
+				kernels.equals("scalar") ? PixelKernels.scalar() : PixelKernels.get());
+		sources = new BufferedImage[16];
+		for (int i = 0; i < sources.length; i++) {
+			sources[i] = SyntheticFrames.generate(i * 7, Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+		}
+		pool = new ForkJoinPool();
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public QuantizedImage quantize() {
+		return quantizer.quantize(sources[index++ & 15]);
+	}
+
+	@Benchmark
+	public QuantizedImage quantizeBands() {
+		return quantizer.quantize(sources[index++ & 15], pool);
+	}
+}
@@ -0,0 +1,78 @@
+package pl.asie.bawsvq;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic frame sources for benchmarks, so they can run without the source video.
+ */
+public final class SyntheticFrames {
+	private SyntheticFrames() {
+
+	}
+
+	/**
+	 * Generate a frame of silhouettes moving over a background which flips between black and white,
+	 * roughly resembling the source material. The same index always yields the same image.
+	 */
+	public static BufferedImage generate(int index, int width, int height) {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = img.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		boolean inverted = ((index / 90) & 1) != 0;
+		g2d.setColor(inverted ? Color.BLACK : Color.WHITE);
+		g2d.fillRect(0, 0, width, height);
+		Random random = new Random(index / 90);
+		for (int i = 0; i < 4; i++) {
+			float phase = (index % 90) / 90.0f;
+			int w = width / 6 + random.nextInt(width / 4);
+			int h = height / 4 + random.nextInt(height / 2);
+			int x = (int) ((random.nextFloat() + phase * (random.nextFloat() - 0.5f)) * width) - w / 2;
+			int y = (int) (random.nextFloat() * height) - h / 2;
+			Color fg = inverted ? Color.WHITE : Color.BLACK;
+			g2d.setPaint(new GradientPaint(x, y, fg, x + w, y + h, Color.GRAY));
+			g2d.fillOval(x, y, w, h);
+		}
+		g2d.dispose();
+		return img;
+	}
+
+	/**
+	 * @return The green channel of an image, as 8-bit samples for {@link ImageQuantizer#quantize(byte[], java.util.concurrent.ForkJoinPool)}.
+	 */
+	public static byte[] samples(BufferedImage img) {
+		int[] pixels = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+		byte[] samples = new byte[pixels.length];
+		for (int i = 0; i < pixels.length; i++) {
+			samples[i] = (byte) (pixels[i] >> 8);
+		}
+		return samples;
+	}
+
+	public static List<QuantizedImage> quantize(ImageQuantizer quantizer, int count, int sourceWidth, int sourceHeight) {
+		List<QuantizedImage> frames = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			frames.add(quantizer.quantize(generate(i, sourceWidth, sourceHeight)));
+		}
+		return frames;
+	}
+
+	/**
+	 * Load frames recorded by a previous encoder run.
+	 */
+	public static List<QuantizedImage> load(Path frameStore, int count) throws IOException {
+		try (FrameStore store = FrameStore.open(frameStore)) {
+			int frameCount = Math.min(count, store.getFrameCount());
+			List<QuantizedImage> frames = new ArrayList<>(frameCount);
+			for (int i = 0; i < frameCount; i++) {
+				frames.add(store.get(i));
+			}
+			return frames;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package pl.asie.bawsvq;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TilePackerBenchmark {
+	private static final int FRAMES = 600;
+
+	/**
+	 * Path to a frame store (see the encoder's --frame-store) from a previous encoder run; empty to use synthetic frames.
+	 */
+	@Param({""})
+	public String frameStore;
+
+	private List<QuantizedImage> frames;
+	private TilePacker packed;
+
+	@Setup
+	public void setup() throws IOException {
+		if (frameStore.isEmpty()) {
+			ImageQuantizer quantizer = new ImageQuantizer(192, 144, 4, OrderedDitherMatrix.MATRIX_4x4);
+			frames = SyntheticFrames.quantize(quantizer, FRAMES, 480, 360);
+		} else {
+			frames = SyntheticFrames.load(Path.of(frameStore), FRAMES);
+		}
+		packed = pack();
+	}
+
+	private TilePacker pack() throws IOException {
+		TilePacker packer = new TilePacker(24, 18, frames.get(0).getSteps(), (12000.0 / 159.0) / 30.0);
+		for (QuantizedImage frame : frames) {
+			packer.addImage(frame);
+		}
+		packer.finish();
+		return packer;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public TilePacker addImage() throws IOException {
+		return pack();
+	}
+
+	@Benchmark
+	public void writeTiles() throws IOException {
+		packed.writeTiles(OutputStream.nullOutputStream());
+	}
+}
@@ -0,0 +1,117 @@
+package pl.asie.bawsvq;
+
+import it.unimi.dsi.fastutil.ints.Int2BooleanAVLTreeMap;
+import it.unimi.dsi.fastutil.ints.Int2BooleanMap;
+import it.unimi.dsi.fastutil.ints.Int2BooleanSortedMap;
+import lombok.Getter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Picks the colour of the screen border around the video, from the brightness of the frames' outer columns.
+ * <p>
+ * The border turns white once the edges are mostly bright, and black once they are mostly dark; in between,
+ * it stays as it is. It also stays for at least a minimum number of frames after each change, so that
+ * flashes and fades do not make it flicker. Changes are keyed by 1-based frame number, and can be saved to and
+ * loaded from a text file (one "frame w|b" line per change) to review or override them.
+ */
+public class BorderDetector {
+	private final float whiteThreshold, blackThreshold;
+	private final int minDwellFrames;
+	@Getter
+	private final Int2BooleanSortedMap changes = new Int2BooleanAVLTreeMap();
+	@Getter
+	private boolean black = true;
+	private int lastChange;
+
+	/**
+	 * @param whiteThreshold Edge brightness above which the border turns white.
+	 * @param blackThreshold Edge brightness below which the border turns black.
+	 * @param minDwellFrames The minimum number of frames between changes.
+	 */
+	public BorderDetector(float whiteThreshold, float blackThreshold, int minDwellFrames) {
+		if (blackThreshold > whiteThreshold) {
+			throw new IllegalArgumentException("Black threshold " + blackThreshold + " is above white threshold " + whiteThreshold);
+		}
+		this.whiteThreshold = whiteThreshold;
+		this.blackThreshold = blackThreshold;
+		this.minDwellFrames = minDwellFrames;
+		this.lastChange = -minDwellFrames;
+	}
+
+	/**
+	 * @return The fraction of bright pixels in the leftmost and rightmost columns of the image.
+	 */
+	public static float measure(QuantizedImage img, int columns) {
+		byte[] data = img.getData();
+		int width = img.getWidth();
+		int threshold = img.getSteps() >> 1;
+		int bright = 0;
+		for (int offset = 0; offset < data.length; offset += width) {
+			for (int ix = 0; ix < columns; ix++) {
+				if (data[offset + ix] >= threshold) {
+					bright++;
+				}
+				if (data[offset + width - 1 - ix] >= threshold) {
+					bright++;
+				}
+			}
+		}
+		return (float) bright / (img.getHeight() * columns * 2);
+	}
+
+	/**
+	 * Feed the edge brightness of the next frame, in order.
+	 *
+	 * @return Whether the border is black from this frame on.
+	 */
+	public boolean update(int frame, float brightness) {
+		if (frame - lastChange >= minDwellFrames) {
+			if (black ? brightness > whiteThreshold : brightness < blackThreshold) {
+				black = !black;
+				lastChange = frame;
+				changes.put(frame, black);
+			}
+		}
+		return black;
+	}
+
+	public static Int2BooleanSortedMap read(Path path) throws IOException {
+		Int2BooleanSortedMap result = new Int2BooleanAVLTreeMap();
+		List<String> lines = Files.readAllLines(path);
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i);
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			String[] parts = line.split("\\s+");
+			if (parts.length != 2 || !(parts[1].equals("w") || parts[1].equals("b"))) {
+				throw new IOException(path + ":" + (i + 1) + ": expected \"<frame> w|b\", got \"" + line + "\"");
+			}
+			try {
+				result.put(Integer.parseInt(parts[0]), parts[1].equals("b"));
+			} catch (NumberFormatException e) {
+				throw new IOException(path + ":" + (i + 1) + ": invalid frame number " + parts[0]);
+			}
+		}
+		return result;
+	}
+
+	public static void write(Path path, Int2BooleanSortedMap changes) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+			writer.write("# frame (1-based), then the border colour from that frame on: w(hite) or b(lack)\n");
+			for (Int2BooleanMap.Entry entry : changes.int2BooleanEntrySet()) {
+				writer.write(entry.getIntKey() + " " + (entry.getBooleanValue() ? "b" : "w") + "\n");
+			}
+		}
+	}
+}
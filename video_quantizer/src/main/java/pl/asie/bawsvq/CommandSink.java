@@ -0,0 +1,142 @@
+package pl.asie.bawsvq;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where a {@link TilePacker} writes its command stream, one 64 KB ROM bank at a time. A bank is passed on
+ * as soon as it is full: written to a file, kept in memory, or dropped, so writing a stream to a file
+ * only ever holds one bank in memory. A file is written under a temporary name, and only moved into place by
+ * {@link #commit()}, so a failed encode never leaves a partial stream behind.
+ */
+public final class CommandSink extends OutputStream {
+	public static final int BANK_SIZE = 0x10000;
+
+	private final FileChannel channel;
+	private final Path path, tempPath;
+	private final List<byte[]> banks;
+	private byte[] bank = new byte[BANK_SIZE];
+	private int bankFill;
+	private int size;
+
+	private CommandSink(FileChannel channel, Path path, Path tempPath, List<byte[]> banks) {
+		this.channel = channel;
+		this.path = path;
+		this.tempPath = tempPath;
+		this.banks = banks;
+	}
+
+	/**
+	 * @return A sink keeping the whole stream, for {@link #toByteArray()}.
+	 */
+	public static CommandSink inMemory() {
+		return new CommandSink(null, null, null, new ArrayList<>());
+	}
+
+	/**
+	 * @return A sink which only counts the bytes of the stream.
+	 */
+	public static CommandSink discarding() {
+		return new CommandSink(null, null, null, null);
+	}
+
+	/**
+	 * @return A sink writing the stream to a file, which is only created or replaced by {@link #commit()}.
+	 */
+	public static CommandSink open(Path path) throws IOException {
+		Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+		return new CommandSink(FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), path, tempPath, null);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		bank[bankFill++] = (byte) b;
+		size++;
+		if (bankFill == BANK_SIZE) {
+			flushBank();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, BANK_SIZE - bankFill);
+			System.arraycopy(b, off, bank, bankFill, n);
+			bankFill += n;
+			size += n;
+			off += n;
+			len -= n;
+			if (bankFill == BANK_SIZE) {
+				flushBank();
+			}
+		}
+	}
+
+	private void flushBank() throws IOException {
+		if (channel != null) {
+			ByteBuffer buffer = ByteBuffer.wrap(bank, 0, bankFill);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} else if (banks != null && bankFill == BANK_SIZE) {
+			banks.add(bank);
+			bank = new byte[BANK_SIZE];
+		}
+		bankFill = 0;
+	}
+
+	/**
+	 * @return The number of bytes written so far.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public byte[] toByteArray() {
+		if (banks == null) {
+			throw new IllegalStateException("Only in-memory command sinks keep the stream");
+		}
+		byte[] result = new byte[size];
+		for (int i = 0; i < banks.size(); i++) {
+			System.arraycopy(banks.get(i), 0, result, i * BANK_SIZE, BANK_SIZE);
+		}
+		System.arraycopy(bank, 0, result, banks.size() * BANK_SIZE, bankFill);
+		return result;
+	}
+
+	/**
+	 * Write out the last, partial bank and move the file into place, if writing to a file.
+	 */
+	public void commit() throws IOException {
+		if (channel != null) {
+			try {
+				flushBank();
+			} finally {
+				channel.close();
+			}
+			Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Discard the file, unless the stream was committed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			try {
+				channel.close();
+			} finally {
+				Files.deleteIfExists(tempPath);
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package pl.asie.bawsvq;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-striped dictionary of tiles, handing out ids in order of insertion.
+ * With several threads inserting, that order (and so the ids) is not deterministic.
+ */
+final class ConcurrentTileDictionary {
+	private static final int STRIPE_BITS = 6;
+	private final TileMap[] stripes = new TileMap[1 << STRIPE_BITS];
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	ConcurrentTileDictionary() {
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new TileMap(1024);
+		}
+	}
+
+	int intern(long p0, long p1) {
+		TileMap stripe = stripes[(int) (HashCommon.mix(p1 ^ HashCommon.mix(p0)) >>> (64 - STRIPE_BITS))];
+		synchronized (stripe) {
+			int id = stripe.get(p0, p1, -1);
+			if (id < 0) {
+				id = nextId.getAndIncrement();
+				stripe.put(p0, p1, id);
+			}
+			return id;
+		}
+	}
+
+	int size() {
+		return nextId.get();
+	}
+}
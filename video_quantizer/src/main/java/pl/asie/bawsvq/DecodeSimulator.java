@@ -0,0 +1,248 @@
+package pl.asie.bawsvq;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Estimates how long the decoder ({@code parse_until_next_frame} in src/main.c) takes to decode each frame of a
+ * command stream, and whether it keeps up with the vblanks each frame is shown for.
+ * <p>
+ * Bytes written to the simulator are decoded as they arrive, the same way the decoder reads them: following 0xF1 bank
+ * switches, and stopping at 0xF0 or at a version header it does not understand. Each command is charged an estimated
+ * V30MZ cycle count for its code path, including the two bank switches and the {@code tilecpy} of every upload; each
+ * frame is also charged the buffer flip and screen map copy of the main loop. Time taken by the audio and vblank
+ * interrupts is left out of the budget of every vblank.
+ * <p>
+ * Each frame is decoded while the one before it is shown, and must be ready by the time that one's vblanks are over.
+ * The decoder never gets ahead of the video, but a frame it finishes late delays the ones after it until they make up
+ * for it. The first frame is decoded before the video starts, so it is never late.
+ */
+public final class DecodeSimulator extends OutputStream {
+	public static final int CYCLES_PER_LINE = 256;
+	public static final int LINES_PER_VBLANK = 159;
+	public static final int CYCLES_PER_VBLANK = CYCLES_PER_LINE * LINES_PER_VBLANK;
+	public static final double VBLANKS_PER_SECOND = 12000.0 / 159.0;
+	// highest command stream version the decoder understands
+	private static final int DECODER_VERSION = TilePacker.COMMAND_VERSION_REPLAY;
+
+	// estimated cycle counts of the decoder's code paths (gcc-ia16 -O2, V30MZ), rounded up
+	private static final int AUDIO_CYCLES_PER_LINE = 60;
+	private static final int VBLANK_HANDLER_CYCLES = 30;
+	private static final int BUDGET_PER_VBLANK = CYCLES_PER_VBLANK - AUDIO_CYCLES_PER_LINE * LINES_PER_VBLANK - VBLANK_HANDLER_CYCLES;
+	// one 1136-byte screen map, copied with rep movsw
+	private static final int SCREEN_COPY_CYCLES = 568 * 5 + 40;
+	private static final int FRAME_START_CYCLES = 60 + SCREEN_COPY_CYCLES;
+	private static final int FRAME_END_CYCLES = 60;
+	private static final int BANK_SWITCH_CYCLES = 12;
+	private static final int SKIP_CYCLES = 20;
+	private static final int UPLOAD_CYCLES = 110 + 2 * BANK_SWITCH_CYCLES;
+	private static final int TILECPY_2BPP_CYCLES = 80;
+	private static final int TILECPY_1BPP_CYCLES = 120;
+	private static final int RUN_CYCLES = 50;
+	private static final int RUN_TILE_CYCLES = 12;
+	private static final int PLACE_CYCLES = 35;
+	private static final int EMPTY_CYCLES = 40;
+	private static final int VERSION_CYCLES = 45;
+	private static final int EXTENDED_CYCLES = 50;
+	private static final int NEXT_BANK_CYCLES = 45 + BANK_SWITCH_CYCLES;
+	private static final int BORDER_CYCLES = 50;
+
+	private final int uploadCycles;
+	private final int[] command = new int[4];
+	private int commandLength, commandFill;
+	private long position;
+	private boolean nextBankPending, ended;
+	private boolean strict;
+	private long cycles = FRAME_START_CYCLES;
+	private long lagCycles;
+	private final IntArrayList frameVblanks = new IntArrayList();
+	private final LongArrayList frameCycles = new LongArrayList();
+	private final LongArrayList frameBudget = new LongArrayList();
+	private final LongArrayList frameLag = new LongArrayList();
+	private int previousVbls = -1;
+	@Getter
+	private long vblanks;
+	@Getter
+	private int lateFrames;
+	@Getter
+	private long maxLagCycles;
+	@Getter
+	private double maxLoad;
+
+	/**
+	 * @param steps The gray levels of the tiles: 4 (2bpp) or 2 (1bpp, which the decoder expands as it copies).
+	 */
+	public DecodeSimulator(int steps) {
+		this.uploadCycles = UPLOAD_CYCLES + (steps == 4 ? TILECPY_2BPP_CYCLES : TILECPY_1BPP_CYCLES);
+	}
+
+	/**
+	 * Fail on the first late frame: writing the command which ends it throws an {@link IOException}.
+	 */
+	public void setStrict(boolean strict) {
+		this.strict = strict;
+	}
+
+	public static long vblanksToCycles(int vblanks) {
+		return (long) vblanks * BUDGET_PER_VBLANK;
+	}
+
+	private static int getCommandLength(int cmd) {
+		if (cmd <= 0x7F) {
+			return 1;
+		} else if (cmd <= 0xBF) {
+			return 4;
+		} else if (cmd <= 0xDF) {
+			return 3;
+		} else if (cmd <= 0xEF || cmd == 0xF2) {
+			return 2;
+		} else if (cmd == 0xF3) {
+			return 3;
+		} else {
+			return 1;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		long index = position++;
+		if (ended) {
+			return;
+		}
+		if (nextBankPending) {
+			// the rest of the bank is padding, which the decoder never reads
+			if ((index & 0xFFFF) != 0) {
+				return;
+			}
+			nextBankPending = false;
+		}
+		if (commandFill == 0) {
+			commandLength = getCommandLength(b & 0xFF);
+		} else if ((index & 0xFFFF) == 0) {
+			throw new IOException("Command at " + (index - commandFill) + " crosses a bank boundary");
+		}
+		command[commandFill++] = b & 0xFF;
+		if (commandFill == commandLength) {
+			commandFill = 0;
+			execute();
+		}
+	}
+
+	private void execute() throws IOException {
+		int cmd = command[0];
+		if (cmd <= 0x7F) {
+			cycles += SKIP_CYCLES;
+		} else if (cmd <= 0xBF) {
+			cycles += uploadCycles;
+		} else if (cmd <= 0xDF) {
+			cycles += RUN_CYCLES + ((cmd & 0x0F) + 2) * RUN_TILE_CYCLES;
+		} else if (cmd <= 0xEF) {
+			cycles += PLACE_CYCLES;
+		} else if (cmd == 0xF4 || cmd == 0xF5) {
+			cycles += EMPTY_CYCLES;
+		} else if (cmd == 0xF2) {
+			cycles += VERSION_CYCLES;
+			if (command[1] > DECODER_VERSION) {
+				ended = true;
+				throw new IOException("The decoder does not understand command stream version " + command[1]);
+			}
+		} else if (cmd == 0xF3) {
+			cycles += EXTENDED_CYCLES;
+			if (command[1] == 0x00) {
+				endFrame(command[2]);
+			} else if (command[1] == 0x01 || command[1] == 0x02) {
+				cycles += SCREEN_COPY_CYCLES;
+			}
+		} else if (cmd == 0xF1) {
+			cycles += NEXT_BANK_CYCLES;
+			nextBankPending = true;
+		} else if (cmd == 0xF6 || cmd == 0xF7) {
+			cycles += BORDER_CYCLES;
+		} else if (cmd >= 0xF8) {
+			endFrame(cmd & 0x07);
+		} else if (cmd == 0xF0) {
+			ended = true;
+		}
+	}
+
+	private void endFrame(int frameVbls) throws IOException {
+		long frameTotal = cycles + FRAME_END_CYCLES;
+		long budget = previousVbls >= 0 ? vblanksToCycles(previousVbls) : frameTotal;
+		lagCycles = Math.max(0, lagCycles + frameTotal - budget);
+		frameVblanks.add(frameVbls);
+		frameCycles.add(frameTotal);
+		frameBudget.add(budget);
+		frameLag.add(lagCycles);
+		if (previousVbls > 0) {
+			maxLoad = Math.max(maxLoad, (double) frameTotal / budget);
+		}
+		maxLagCycles = Math.max(maxLagCycles, lagCycles);
+		if (lagCycles > 0) {
+			lateFrames++;
+			if (strict) {
+				throw new IOException(String.format("Frame %d, at %.2f s, takes %d cycles to decode, but the frame before it is shown for %d vblanks (%d cycles); it is %.1f ms late",
+						frameCycles.size() - 1, vblanks / VBLANKS_PER_SECOND, frameTotal, previousVbls, budget, getLagMillis(lagCycles)));
+			}
+		}
+		vblanks += frameVbls;
+		previousVbls = frameVbls;
+		cycles = FRAME_START_CYCLES;
+	}
+
+	private static double getLagMillis(long lagCycles) {
+		return lagCycles * 1000.0 / (BUDGET_PER_VBLANK * VBLANKS_PER_SECOND);
+	}
+
+	/**
+	 * @return Whether the decoder stopped reading, at 0xF0.
+	 */
+	public boolean isEnded() {
+		return ended;
+	}
+
+	public int getFrameCount() {
+		return frameCycles.size();
+	}
+
+	public int getVblanks(int frame) {
+		return frameVblanks.getInt(frame);
+	}
+
+	public long getCycles(int frame) {
+		return frameCycles.getLong(frame);
+	}
+
+	/**
+	 * @return The cycles available to decode the frame: the vblanks of the frame before it.
+	 */
+	public long getBudgetCycles(int frame) {
+		return frameBudget.getLong(frame);
+	}
+
+	/**
+	 * @return How far behind the decoder is at the end of the frame, in cycles; 0 if the frame is on time.
+	 */
+	public long getLagCycles(int frame) {
+		return frameLag.getLong(frame);
+	}
+
+	public double getMaxLagMillis() {
+		return getLagMillis(maxLagCycles);
+	}
+
+	public void writeCsv(Writer writer) {
+		PrintWriter out = new PrintWriter(writer);
+		out.println("frame,vblanks,cycles,budget_cycles,lag_cycles");
+		for (int i = 0; i < getFrameCount(); i++) {
+			out.println(i + "," + frameVblanks.getInt(i) + "," + frameCycles.getLong(i) + "," + frameBudget.getLong(i)
+					+ "," + frameLag.getLong(i));
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,44 @@
+package pl.asie.bawsvq;
+
+/**
+ * Turns tones from 0 to 1, as computed by {@link ImageQuantizer#computeTones(byte[], java.util.concurrent.ForkJoinPool)},
+ * into levels from 0 to steps - 1.
+ * <p>
+ * Ordered dithering ({@link OrderedDitherer}) is fused into the quantizer's own kernels and works on bands of rows;
+ * the others go through a tone plane, and error diffusion is serial within a frame. Temporal ditherers additionally
+ * depend on the previous frame's output, so frames have to be dithered one after another, in order.
+ */
+public interface Ditherer {
+	/**
+	 * @param previous The levels of the previous frame, or null for the first frame (or a scene cut). Ignored unless {@link #isTemporal()}.
+	 * @param dest At least width * height levels.
+	 */
+	void dither(float[] tones, int width, int height, int steps, byte[] previous, byte[] dest);
+
+	default boolean isTemporal() {
+		return false;
+	}
+
+	/**
+	 * @return A description of everything the output depends on, such as the matrix or diffusion weights, which
+	 *         does not change between runs; frame stores and caches are keyed on it, rather than on {@link #hashCode()}.
+	 */
+	String getKey();
+
+	/**
+	 * @param name A dither matrix name (see {@link OrderedDitherMatrix#byName(String)}), "floyd-steinberg", "atkinson",
+	 *             or any of them prefixed with "temporal:".
+	 * @param temporalThreshold How far, in levels, past half a level away a pixel's new value may be from its previous level
+	 *                          for the previous level to be kept; only used by temporal ditherers.
+	 */
+	static Ditherer byName(String name, float temporalThreshold) {
+		if (name.startsWith("temporal:")) {
+			return new TemporalDitherer(byName(name.substring("temporal:".length()), temporalThreshold), temporalThreshold);
+		}
+		return switch (name) {
+			case "floyd-steinberg" -> ErrorDiffusionDitherer.FLOYD_STEINBERG;
+			case "atkinson" -> ErrorDiffusionDitherer.ATKINSON;
+			default -> new OrderedDitherer(OrderedDitherMatrix.byName(name));
+		};
+	}
+}
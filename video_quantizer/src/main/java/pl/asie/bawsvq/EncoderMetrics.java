@@ -0,0 +1,256 @@
+package pl.asie.bawsvq;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Named counters, histograms and gauges describing an encode, safe to update from any thread.
+ * <p>
+ * Metrics are looked up by name once and then updated through the returned object, which costs a few
+ * uncontended atomic adds. Gauges are read when sampled, without synchronization, so while the encode runs
+ * they are approximate. Everything can be exported as CSV or JSON; the JSON also holds the samples taken
+ * by {@link #startSampling(long, PrintStream)}.
+ */
+public class EncoderMetrics {
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	/**
+	 * A histogram of non-negative values, with buckets 1/8 of a power of two wide:
+	 * percentiles are exact below 16, and within 12.5% above.
+	 */
+	public static class Histogram {
+		private static final int SUB_BUCKET_BITS = 3;
+		private static final int LINEAR_LIMIT = 2 << SUB_BUCKET_BITS;
+		private final AtomicLongArray buckets = new AtomicLongArray(LINEAR_LIMIT + (64 - SUB_BUCKET_BITS - 1) * (1 << SUB_BUCKET_BITS));
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+		private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+		private final double scale;
+
+		private Histogram(double scale) {
+			this.scale = scale;
+		}
+
+		private static int bucketOf(long value) {
+			if (value < LINEAR_LIMIT) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+			return LINEAR_LIMIT + ((exponent - SUB_BUCKET_BITS - 1) << SUB_BUCKET_BITS) + subBucket;
+		}
+
+		private static long bucketStart(int bucket) {
+			if (bucket < LINEAR_LIMIT) {
+				return bucket;
+			}
+			int exponent = ((bucket - LINEAR_LIMIT) >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS + 1;
+			int subBucket = (bucket - LINEAR_LIMIT) & ((1 << SUB_BUCKET_BITS) - 1);
+			return (1L << exponent) | ((long) subBucket << (exponent - SUB_BUCKET_BITS));
+		}
+
+		public void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			buckets.incrementAndGet(bucketOf(value));
+			count.increment();
+			sum.add(value);
+			min.accumulate(value);
+			max.accumulate(value);
+		}
+
+		/**
+		 * Record the time elapsed since the given {@link System#nanoTime()}.
+		 */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getSum() {
+			return sum.sum() / scale;
+		}
+
+		public double getMin() {
+			return getCount() > 0 ? min.get() / scale : 0;
+		}
+
+		public double getMax() {
+			return getCount() > 0 ? max.get() / scale : 0;
+		}
+
+		public double getMean() {
+			long n = getCount();
+			return n > 0 ? sum.sum() / scale / n : 0;
+		}
+
+		/**
+		 * @param fraction The fraction of recorded values to be at or below the result, from 0 to 1.
+		 */
+		public double getPercentile(double fraction) {
+			long n = getCount();
+			if (n == 0) {
+				return 0;
+			}
+			long target = Math.max(1, (long) Math.ceil(fraction * n));
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= target) {
+					// the bucket's start, but never outside of the recorded range
+					return Math.min(Math.max(bucketStart(i), min.get()), max.get()) / scale;
+				}
+			}
+			return max.get() / scale;
+		}
+	}
+
+	private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+	private final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+	private final List<String> samples = new ArrayList<>();
+	private final long startNanos = System.nanoTime();
+
+	public LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, k -> new LongAdder());
+	}
+
+	public Histogram histogram(String name) {
+		return histograms.computeIfAbsent(name, k -> new Histogram(1));
+	}
+
+	/**
+	 * @return A histogram recording nanoseconds, and reporting milliseconds.
+	 */
+	public Histogram timer(String name) {
+		return histograms.computeIfAbsent(name, k -> new Histogram(NANOS_PER_MILLI));
+	}
+
+	/**
+	 * Register a value to be read whenever the metrics are sampled or exported, replacing any previous gauge of that name.
+	 */
+	public void gauge(String name, DoubleSupplier value) {
+		gauges.put(name, value);
+	}
+
+	private double getElapsedSeconds() {
+		return (System.nanoTime() - startNanos) / 1e9;
+	}
+
+	private static String format(double value) {
+		return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private static String quote(String s) {
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private String toJsonObject(boolean includeHistograms) {
+		StringBuilder sb = new StringBuilder("{\"elapsed_s\":").append(format(getElapsedSeconds()));
+		sb.append(",\"counters\":{");
+		String sep = "";
+		for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet()) {
+			sb.append(sep).append(quote(e.getKey())).append(':').append(e.getValue().sum());
+			sep = ",";
+		}
+		sb.append("},\"gauges\":{");
+		sep = "";
+		for (Map.Entry<String, DoubleSupplier> e : new TreeMap<>(gauges).entrySet()) {
+			sb.append(sep).append(quote(e.getKey())).append(':').append(format(e.getValue().getAsDouble()));
+			sep = ",";
+		}
+		sb.append('}');
+		if (includeHistograms) {
+			sb.append(",\"histograms\":{");
+			sep = "";
+			for (Map.Entry<String, Histogram> e : new TreeMap<>(histograms).entrySet()) {
+				Histogram h = e.getValue();
+				sb.append(sep).append(quote(e.getKey())).append(":{\"count\":").append(h.getCount())
+						.append(",\"sum\":").append(format(h.getSum()))
+						.append(",\"min\":").append(format(h.getMin()))
+						.append(",\"mean\":").append(format(h.getMean()))
+						.append(",\"p50\":").append(format(h.getPercentile(0.5)))
+						.append(",\"p90\":").append(format(h.getPercentile(0.9)))
+						.append(",\"p99\":").append(format(h.getPercentile(0.99)))
+						.append(",\"max\":").append(format(h.getMax())).append('}');
+				sep = ",";
+			}
+			sb.append('}');
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Record the current counters and gauges, and print them on one line.
+	 */
+	public void sample(PrintStream out) {
+		String sample = toJsonObject(false);
+		synchronized (samples) {
+			samples.add(sample);
+		}
+		if (out != null) {
+			StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "[%.1f s]", getElapsedSeconds()));
+			new TreeMap<>(counters).forEach((k, v) -> sb.append(' ').append(k).append('=').append(v.sum()));
+			new TreeMap<>(gauges).forEach((k, v) -> sb.append(' ').append(k).append('=').append(format(v.getAsDouble())));
+			out.println(sb);
+		}
+	}
+
+	/**
+	 * Call {@link #sample(PrintStream)} periodically on a daemon thread, until the returned executor is shut down.
+	 */
+	public ScheduledExecutorService startSampling(long intervalMillis, PrintStream out) {
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "metrics-sampler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleAtFixedRate(() -> sample(out), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		return executor;
+	}
+
+	public void writeJson(Writer writer) {
+		PrintWriter out = new PrintWriter(writer);
+		String summary = toJsonObject(true);
+		out.write(summary, 0, summary.length() - 1);
+		out.println(",\"samples\":[");
+		synchronized (samples) {
+			for (int i = 0; i < samples.size(); i++) {
+				out.println(samples.get(i) + (i + 1 < samples.size() ? "," : ""));
+			}
+		}
+		out.println("]}");
+		out.flush();
+	}
+
+	public void writeCsv(Writer writer) {
+		PrintWriter out = new PrintWriter(writer);
+		out.println("name,type,count,sum,min,mean,p50,p90,p99,max");
+		new TreeMap<>(counters).forEach((k, v) -> out.println(k + ",counter,," + v.sum() + ",,,,,,"));
+		new TreeMap<>(gauges).forEach((k, v) -> out.println(k + ",gauge,," + format(v.getAsDouble()) + ",,,,,,"));
+		new TreeMap<>(histograms).forEach((k, h) -> out.println(k + "," + (h.scale == 1 ? "histogram" : "timer_ms") + "," + h.getCount()
+				+ "," + format(h.getSum()) + "," + format(h.getMin()) + "," + format(h.getMean())
+				+ "," + format(h.getPercentile(0.5)) + "," + format(h.getPercentile(0.9)) + "," + format(h.getPercentile(0.99))
+				+ "," + format(h.getMax())));
+		out.flush();
+	}
+}
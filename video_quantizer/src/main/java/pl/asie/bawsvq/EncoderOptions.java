@@ -0,0 +1,174 @@
+package pl.asie.bawsvq;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+
+/**
+ * Command-line options of {@link Main}.
+ */
+public class EncoderOptions {
+	@Parameter(names = {"-i", "--input"}, description = "Input frames: a String.format pattern taking the frame number (e.g. frames/%05d.png), a glob (e.g. frames/*.png), a .y4m file, or - for a YUV4MPEG2 or raw gray stream on standard input")
+	public String input = "../frames/%05d.png";
+
+	@Parameter(names = "--raw-size", description = "Size of raw 8-bit gray input frames (e.g. 480x360), if standard input is not YUV4MPEG2")
+	public String rawSize = "";
+
+	public int rawWidth, rawHeight;
+
+	@Parameter(names = "--first-frame", description = "Number of the first frame, for format patterns")
+	public int firstFrame = 1;
+
+	@Parameter(names = {"-n", "--frames"}, description = "Number of frames to encode; by default, all input frames")
+	public int frames = -1;
+
+	// the player's window (src/main.c), which is also all of the screen map it carries from one frame to the next
+	public static final int MAX_WIDTH = 192, MAX_HEIGHT = 144;
+
+	@Parameter(names = {"-W", "--width"}, description = "Output width in pixels, a multiple of 8, at most " + MAX_WIDTH + " (the width the player shows)")
+	public int width = MAX_WIDTH;
+
+	@Parameter(names = {"-H", "--height"}, description = "Output height in pixels, a multiple of 8, at most " + MAX_HEIGHT + " (the height the player shows)")
+	public int height = MAX_HEIGHT;
+
+	@Parameter(names = {"-s", "--steps"}, description = "Gray levels: 4 (2bpp) or 2 (1bpp)")
+	public int steps = 4;
+
+	@Parameter(names = {"-d", "--dither"}, description = "Ditherer: a matrix (none, checks, 2x2, 4x4, 8x8 or 4x4_vertical), "
+			+ "floyd-steinberg or atkinson; prefix with temporal: to keep the previous frame's levels where little changed")
+	public String dither = "4x4";
+
+	@Parameter(names = "--temporal-threshold", description = "How far, in gray levels beyond half a level, temporal dithering keeps previous levels")
+	public float temporalThreshold = 0.25f;
+
+	@Parameter(names = {"-r", "--fps"}, description = "Frame rate of the input")
+	public double fps = 30.0;
+
+	@Parameter(names = {"-t", "--threads"}, description = "Worker threads; by default, one per core")
+	public int threads = Runtime.getRuntime().availableProcessors();
+
+	@Parameter(names = "--cache", description = "Quantized frame cache directory, shared between runs; empty to disable")
+	public String cache = "frameCache";
+
+	@Parameter(names = "--cache-size", description = "Size limit of the frame cache, in megabytes; the least recently used frames are evicted")
+	public long cacheSize = 1024;
+
+	@Parameter(names = "--frame-store", description = "Keep this run's quantized frames in this frame store file, e.g. for benchmarks; by default, a temporary file")
+	public String frameStore = "";
+
+	@Parameter(names = {"-o", "--output"}, description = "Output directory for tiles.bin and commands.bin")
+	public String output = "../res";
+
+	@Parameter(names = "--preview", description = "Directory for PNG previews of newly quantized frames; empty to disable")
+	public String preview = "temp";
+
+	@Parameter(names = "--border-file", description = "Border colour changes overriding the detected ones, if the file exists")
+	public String borderFile = "borderFlips.txt";
+
+	@Parameter(names = "--detected-border-file", description = "File for the detected border colour changes, in the format of --border-file; "
+			+ "by default, borderFlips.detected.txt next to it; empty to disable")
+	public String detectedBorderFile;
+
+	@Parameter(names = "--stats", description = "Per-frame statistics CSV file; empty to disable")
+	public String stats = "frameStats.csv";
+
+	@Parameter(names = "--metrics-json", description = "Metrics summary and samples JSON file; empty to disable")
+	public String metricsJson = "metrics.json";
+
+	@Parameter(names = "--metrics-csv", description = "Metrics summary CSV file; empty to disable")
+	public String metricsCsv = "metrics.csv";
+
+	@Parameter(names = "--sample-interval", description = "Seconds between printed metrics samples; 0 to disable")
+	public double sampleInterval = 10.0;
+
+	@Parameter(names = "--no-lookahead", description = "Encode once with LRU tile slot allocation, instead of twice with lookahead allocation")
+	public boolean noLookahead;
+
+	@Parameter(names = "--lossy-distance", description = "Reuse existing tiles at most this pixel distance away; 0 to disable")
+	public int lossyDistance = 0;
+
+	@Parameter(names = "--max-uploads", description = "Tile upload budget per frame; 0 for none")
+	public int maxUploads = 0;
+
+	@Parameter(names = "--max-command-bytes", description = "Command byte budget per frame; 0 for none")
+	public int maxCommandBytes = 0;
+
+	@Parameter(names = "--cluster-tiles", description = "Build a tile set of this size for the whole clip; 0 to disable")
+	public int clusterTiles = 0;
+
+	@Parameter(names = "--command-version", description = "Command stream version: 1 (legacy), 2 (compact) or 3 (holds and screen cache replays)")
+	public int commandVersion = TilePacker.COMMAND_VERSION_REPLAY;
+
+	@Parameter(names = "--screen-cache-slots", description = "Screen maps the decoder can cache for replaying repeated frames "
+			+ "(SCREEN_CACHE_SLOTS in src/config.h, at most " + TilePacker.MAX_SCREEN_CACHE_SLOTS + "); 0 to replay nothing")
+	public int screenCacheSlots = 1;
+
+	@Parameter(names = "--strict-decode-time", description = "Fail the encode if the decoder would fall behind the video at any frame")
+	public boolean strictDecodeTime;
+
+	@Parameter(names = "--decode-stats", description = "Per-frame decode time estimate CSV file; empty to disable")
+	public String decodeStats = "";
+
+	@Parameter(names = "--simulate", description = "Instead of encoding, estimate the decode time of an existing commands.bin")
+	public String simulate = "";
+
+	@Parameter(names = "--profile", description = "Print the time spent in each stage")
+	public boolean profile;
+
+	@Parameter(names = {"-h", "--help"}, help = true, description = "Show this help")
+	public boolean help;
+
+	public void validate() {
+		if (width <= 0 || height <= 0 || (width & 7) != 0 || (height & 7) != 0 || width > MAX_WIDTH || height > MAX_HEIGHT) {
+			throw new ParameterException("Invalid resolution: " + width + "x" + height + " (must be multiples of 8, at most " + MAX_WIDTH + "x" + MAX_HEIGHT
+					+ ", the part of the screen the player shows and copies between frames)");
+		}
+		if (!rawSize.isEmpty()) {
+			String[] parts = rawSize.split("x");
+			try {
+				rawWidth = parts.length == 2 ? Integer.parseInt(parts[0]) : 0;
+				rawHeight = parts.length == 2 ? Integer.parseInt(parts[1]) : 0;
+			} catch (NumberFormatException e) {
+				rawWidth = rawHeight = 0;
+			}
+			if (rawWidth <= 0 || rawHeight <= 0) {
+				throw new ParameterException("Invalid raw frame size: " + rawSize);
+			}
+		}
+		if (steps != 2 && steps != 4) {
+			throw new ParameterException("Invalid step count: " + steps);
+		}
+		if (!(temporalThreshold >= 0 && temporalThreshold <= 1)) {
+			throw new ParameterException("Invalid temporal threshold: " + temporalThreshold);
+		}
+		try {
+			Ditherer.byName(dither, temporalThreshold);
+		} catch (IllegalArgumentException e) {
+			throw new ParameterException(e.getMessage());
+		}
+		if (!(fps > 0)) {
+			throw new ParameterException("Invalid frame rate: " + fps);
+		}
+		if (threads <= 0) {
+			throw new ParameterException("Invalid thread count: " + threads);
+		}
+		if (cacheSize <= 0) {
+			throw new ParameterException("Invalid frame cache size: " + cacheSize);
+		}
+		if (sampleInterval < 0) {
+			throw new ParameterException("Invalid sample interval: " + sampleInterval);
+		}
+		if (lossyDistance < 0 || maxUploads < 0 || maxCommandBytes < 0 || clusterTiles < 0) {
+			throw new ParameterException("Limits must not be negative");
+		}
+		if (commandVersion < TilePacker.COMMAND_VERSION_LEGACY || commandVersion > TilePacker.COMMAND_VERSION_REPLAY) {
+			throw new ParameterException("Invalid command version: " + commandVersion);
+		}
+		if (Math.ceil(DecodeSimulator.VBLANKS_PER_SECOND / fps) > TilePacker.getMaxFrameVblanks(commandVersion)) {
+			throw new ParameterException("Frame rate too low for command version " + commandVersion + ": " + fps + " (frames may be shown for at most "
+					+ TilePacker.getMaxFrameVblanks(commandVersion) + " vblanks)");
+		}
+		if (screenCacheSlots < 0 || screenCacheSlots > TilePacker.MAX_SCREEN_CACHE_SLOTS) {
+			throw new ParameterException("Invalid screen cache slot count: " + screenCacheSlots);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package pl.asie.bawsvq;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Error diffusion dithering, scanning rows in alternating directions (serpentine order) to avoid directional artifacts.
+ * Each frame is processed serially, row by row, so throughput comes from dithering several frames at once.
+ */
+@EqualsAndHashCode
+public final class ErrorDiffusionDitherer implements Ditherer {
+	private static final int MARGIN = 2;
+	private static final int ROWS = 3;
+
+	public static final ErrorDiffusionDitherer FLOYD_STEINBERG = new ErrorDiffusionDitherer("floyd-steinberg", new int[] {
+			1, 0, 7,
+			-1, 1, 3, 0, 1, 5, 1, 1, 1
+	}, 16);
+
+	// only diffuses 3/4 of the error, which keeps highlights and shadows clean
+	public static final ErrorDiffusionDitherer ATKINSON = new ErrorDiffusionDitherer("atkinson", new int[] {
+			1, 0, 1, 2, 0, 1,
+			-1, 1, 1, 0, 1, 1, 1, 1, 1,
+			0, 2, 1
+	}, 8);
+
+	@Getter
+	private final String name;
+	@Getter
+	private final String key;
+	// (dx, dy) offsets to the right and below the current pixel, and their weights
+	private final int[] dx, dy;
+	private final float[] weights;
+
+	/**
+	 * @param taps Triples of x offset (at most 2 either way), y offset (0 to 2) and weight.
+	 * @param divisor The sum all weights are divided by.
+	 */
+	public ErrorDiffusionDitherer(String name, int[] taps, int divisor) {
+		this.name = name;
+		this.key = "diffusion:" + Arrays.toString(taps) + "/" + divisor;
+		int count = taps.length / 3;
+		this.dx = new int[count];
+		this.dy = new int[count];
+		this.weights = new float[count];
+		for (int i = 0; i < count; i++) {
+			dx[i] = taps[i * 3];
+			dy[i] = taps[i * 3 + 1];
+			weights[i] = (float) taps[i * 3 + 2] / divisor;
+			if (Math.abs(dx[i]) > MARGIN || dy[i] < 0 || dy[i] >= ROWS || (dy[i] == 0 && dx[i] <= 0)) {
+				throw new IllegalArgumentException("Invalid error diffusion tap: " + dx[i] + ", " + dy[i]);
+			}
+		}
+	}
+
+	@Override
+	public void dither(float[] tones, int width, int height, int steps, byte[] previous, byte[] dest) {
+		diffuse(tones, width, height, steps, null, 0, dest);
+	}
+
+	/**
+	 * @param previous If not null, the levels of the previous frame, which are kept for pixels whose value
+	 *                 (with the diffused error) is at most keepDistance away from them. The error of the kept
+	 *                 level is diffused as usual, so the average tone is still preserved.
+	 */
+	void diffuse(float[] tones, int width, int height, int steps, byte[] previous, float keepDistance, byte[] dest) {
+		int rowLength = width + MARGIN * 2;
+		// a rolling window of error rows, the current one first
+		float[] errors = new float[rowLength * ROWS];
+		int maxLevel = steps - 1;
+		for (int iy = 0; iy < height; iy++) {
+			int current = (iy % ROWS) * rowLength + MARGIN;
+			boolean reverse = (iy & 1) != 0;
+			for (int i = 0; i < width; i++) {
+				int ix = reverse ? width - 1 - i : i;
+				int p = iy * width + ix;
+				float value = tones[p] * maxLevel + errors[current + ix];
+				int level = Math.round(value);
+				level = level < 0 ? 0 : (level > maxLevel ? maxLevel : level);
+				if (previous != null && Math.abs(value - previous[p]) <= keepDistance) {
+					level = previous[p];
+				}
+				dest[p] = (byte) level;
+
+				float error = value - level;
+				for (int t = 0; t < weights.length; t++) {
+					int row = ((iy + dy[t]) % ROWS) * rowLength + MARGIN;
+					errors[row + ix + (reverse ? -dx[t] : dx[t])] += error * weights[t];
+				}
+			}
+			Arrays.fill(errors, current - MARGIN, current - MARGIN + rowLength, 0.0f);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,225 @@
+package pl.asie.bawsvq;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed on-disk cache of quantized frames, shared between encoder runs.
+ * <p>
+ * A frame is found by a hash of its source samples and of everything else that decides how it quantizes: the output size,
+ * the levels, the ditherer and the gray curve. Frames from temporal ditherers also depend on the previous frame's output,
+ * so their hash of that is part of the name as well. Changing a setting, or some of the frames, thus only misses the
+ * frames affected. Each frame is a file named after its hash, in a subdirectory named after the first two digits;
+ * once the cache grows over its size limit, the least recently used frames are deleted.
+ */
+public final class FrameCache {
+	// bump whenever quantizing the same samples with the same settings gives different results
+	private static final int QUANTIZER_REVISION = 2;
+	private static final String SUFFIX = ".bin";
+	private static final Pattern FILE_NAME = Pattern.compile("[0-9a-f]{32}(-[0-9a-f]{32})?(\\.bin|[0-9]*\\.tmp)");
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final Path dir;
+	private final long maxBytes;
+	private final int width, height, steps;
+	private final boolean temporal;
+	private final HashCode settingsHash;
+	// name -> size, least recently used first
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+	// source hash -> number of entries, for temporal ditherers
+	private final Object2IntMap<String> sources = new Object2IntOpenHashMap<>();
+	private long totalBytes;
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+	private FrameCache(Path dir, long maxBytes, ImageQuantizer quantizer) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.width = quantizer.getWidth();
+		this.height = quantizer.getHeight();
+		this.steps = quantizer.getSteps();
+		this.temporal = quantizer.getDitherer() != null && quantizer.getDitherer().isTemporal();
+
+		Hasher hasher = HASH.newHasher()
+				.putInt(QUANTIZER_REVISION)
+				.putInt(width).putInt(height).putInt(steps)
+				.putString(quantizer.getDitherer() != null ? quantizer.getDitherer().getKey() : "", StandardCharsets.UTF_8);
+		for (int i = 0; i < 256; i++) {
+			hasher.putFloat(ScalarKernels.asGray(i));
+		}
+		this.settingsHash = hasher.hash();
+	}
+
+	/**
+	 * Open a frame cache for frames produced by the given quantizer, creating the directory if need be.
+	 *
+	 * @param maxBytes The size the cache is trimmed to, least recently used frames first.
+	 */
+	public static FrameCache open(Path dir, long maxBytes, ImageQuantizer quantizer) throws IOException {
+		if (quantizer.getSteps() > 4) {
+			throw new IllegalArgumentException("Frame cache only supports up to 2bpp images");
+		}
+		FrameCache cache = new FrameCache(Files.createDirectories(dir), maxBytes, quantizer);
+		List<Path> files = new ArrayList<>();
+		try (Stream<Path> paths = Files.walk(dir, 2)) {
+			paths.filter(p -> p.getNameCount() == dir.getNameCount() + 2 && FILE_NAME.matcher(p.getFileName().toString()).matches()
+					&& Files.isRegularFile(p)).forEach(files::add);
+		}
+		List<Map.Entry<Path, FileTime>> found = new ArrayList<>();
+		for (Path file : files) {
+			if (file.getFileName().toString().endsWith(SUFFIX)) {
+				found.add(Map.entry(file, Files.getLastModifiedTime(file)));
+			} else {
+				// left behind by an interrupted run
+				Files.deleteIfExists(file);
+			}
+		}
+		found.sort(Map.Entry.comparingByValue(Comparator.naturalOrder()));
+		synchronized (cache) {
+			for (Map.Entry<Path, FileTime> entry : found) {
+				String fileName = entry.getKey().getFileName().toString();
+				cache.add(fileName.substring(0, fileName.length() - SUFFIX.length()), Files.size(entry.getKey()));
+			}
+			cache.trim();
+		}
+		return cache;
+	}
+
+	/**
+	 * @return The hash of a frame's source samples, as passed to the quantizer, and of the quantizer's settings.
+	 */
+	public HashCode hashSource(byte[] samples) {
+		return HASH.newHasher().putBytes(settingsHash.asBytes()).putBytes(samples).hash();
+	}
+
+	/**
+	 * @param previous The previous frame's output, or null for the first frame; only temporal ditherers depend on it.
+	 * @return The name of a frame in the cache.
+	 */
+	public String getName(HashCode source, QuantizedImage previous) {
+		if (!temporal) {
+			return source.toString();
+		}
+		return source + "-" + (previous != null ? HASH.hashBytes(previous.getData()) : HashCode.fromBytes(new byte[HASH.bits() / 8]));
+	}
+
+	/**
+	 * @return Whether the cache may have the frame with this source hash, for some previous frame.
+	 */
+	public synchronized boolean hasSource(HashCode source) {
+		return temporal ? sources.getInt(source.toString()) > 0 : entries.containsKey(source.toString());
+	}
+
+	private Path getPath(String name) {
+		return dir.resolve(name.substring(0, 2)).resolve(name + SUFFIX);
+	}
+
+	private static String getSource(String name) {
+		int dash = name.indexOf('-');
+		return dash >= 0 ? name.substring(0, dash) : name;
+	}
+
+	private void add(String name, long size) {
+		if (entries.put(name, size) == null) {
+			sources.mergeInt(getSource(name), 1, Integer::sum);
+			totalBytes += size;
+		}
+	}
+
+	private void trim() throws IOException {
+		Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			it.remove();
+			totalBytes -= entry.getValue();
+			String source = getSource(entry.getKey());
+			if (sources.mergeInt(source, -1, Integer::sum) <= 0) {
+				sources.removeInt(source);
+			}
+			Files.deleteIfExists(getPath(entry.getKey()));
+			evictions.increment();
+		}
+	}
+
+	/**
+	 * @return The cached frame, or null if there is none.
+	 */
+	public QuantizedImage get(String name) throws IOException {
+		synchronized (this) {
+			if (entries.get(name) == null) {
+				misses.increment();
+				return null;
+			}
+		}
+		Path path = getPath(name);
+		byte[] record;
+		try {
+			record = Files.readAllBytes(path);
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (NoSuchFileException e) {
+			// evicted in the meantime
+			misses.increment();
+			return null;
+		}
+		if (record.length != ((width * height) + 3) >> 2) {
+			throw new IOException("Corrupt frame cache entry: " + path);
+		}
+		hits.increment();
+		return FrameStore.unpack(ByteBuffer.wrap(record), width, height, steps);
+	}
+
+	public void put(String name, QuantizedImage image) throws IOException {
+		Path path = getPath(name);
+		Files.createDirectories(path.getParent());
+		// written under a temporary name first, so that the cache never has partial frames
+		Path temp = Files.createTempFile(path.getParent(), name, ".tmp");
+		byte[] record = FrameStore.pack(image).array();
+		try {
+			Files.write(temp, record);
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		synchronized (this) {
+			add(name, record.length);
+			trim();
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public synchronized long getSize() {
+		return totalBytes;
+	}
+}
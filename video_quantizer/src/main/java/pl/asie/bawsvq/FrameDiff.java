@@ -0,0 +1,55 @@
+package pl.asie.bawsvq;
+
+/**
+ * Finds 8x8 tiles which differ between two frames, comparing a full tile row (8 pixels) at a time.
+ */
+public final class FrameDiff {
+	private FrameDiff() {
+
+	}
+
+	public static long[] createBitmap(int tileCount) {
+		return new long[(tileCount + 63) >> 6];
+	}
+
+	public static boolean isDirty(long[] bitmap, int tile) {
+		return (bitmap[tile >> 6] & (1L << tile)) != 0;
+	}
+
+	/**
+	 * Mark every tile which differs between the two frames in the bitmap, indexed by (ty * tileWidth) + tx.
+	 *
+	 * @param accum Scratch space of at least tileWidth entries.
+	 * @return The number of dirty tiles.
+	 */
+	public static int compute(QuantizedImage prev, QuantizedImage curr, int tileWidth, int tileHeight, long[] accum, long[] bitmap) {
+		byte[] a = prev.getData();
+		byte[] b = curr.getData();
+		int stride = curr.getWidth();
+		if (prev.getWidth() != stride || a.length != b.length) {
+			throw new IllegalArgumentException("Frame sizes do not match");
+		}
+		PixelKernels kernels = PixelKernels.get();
+		int count = 0;
+		int tile = 0;
+		for (int ty = 0; ty < tileHeight; ty++) {
+			for (int tx = 0; tx < tileWidth; tx++) {
+				accum[tx] = 0;
+			}
+			int row = ty * 8 * stride;
+			for (int iy = 0; iy < 8; iy++, row += stride) {
+				kernels.diffRow(a, b, row, accum, tileWidth);
+			}
+			for (int tx = 0; tx < tileWidth; tx++, tile++) {
+				long mask = 1L << tile;
+				if (accum[tx] != 0) {
+					bitmap[tile >> 6] |= mask;
+					count++;
+				} else {
+					bitmap[tile >> 6] &= ~mask;
+				}
+			}
+		}
+		return count;
+	}
+}
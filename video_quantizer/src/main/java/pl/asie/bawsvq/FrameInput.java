@@ -0,0 +1,121 @@
+package pl.asie.bawsvq;
+
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+/**
+ * A source of video frames as 8-bit gray samples (the green channel of RGB input, or luma),
+ * already resampled to the size the quantizer works at (see {@link ImageQuantizer#quantize(byte[], java.util.concurrent.ForkJoinPool)}).
+ * <p>
+ * Frames may be read from several threads at once, and somewhat out of order, as a {@link FramePipeline} does.
+ * Sample buffers are pooled: a frame read into {@link #acquireBuffer()} should be handed back with {@link #releaseBuffer(byte[])}.
+ */
+public abstract class FrameInput implements Closeable {
+	@Getter
+	protected final int width, height;
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+	private final Map<Integer, Queue<byte[]>> sourceBuffers = new ConcurrentHashMap<>();
+	private final Map<Long, GrayResampler> resamplers = new ConcurrentHashMap<>();
+
+	protected FrameInput(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Open PNG frames (as a {@link String#format} pattern taking the frame number, or a glob), a .y4m file,
+	 * or "-" for a YUV4MPEG2 or raw 8-bit gray stream on standard input.
+	 *
+	 * @param firstFrame The number of the first frame, for patterns.
+	 * @param maxFrames The maximum number of frames to read, or -1 for all.
+	 * @param rawWidth The width of raw gray frames; 0 if the input is not raw.
+	 */
+	public static FrameInput open(String input, int firstFrame, int maxFrames, int width, int height, int rawWidth, int rawHeight) throws IOException {
+		if (input.equals("-")) {
+			return new StreamFrameInput(new BufferedInputStream(System.in, 1 << 16), width, height, maxFrames, rawWidth, rawHeight);
+		} else if (input.endsWith(".y4m")) {
+			return new StreamFrameInput(new BufferedInputStream(Files.newInputStream(Path.of(input)), 1 << 16), width, height, maxFrames, 0, 0);
+		}
+
+		List<Path> frames = new ArrayList<>();
+		if (input.contains("%")) {
+			for (int i = firstFrame; maxFrames < 0 || frames.size() < maxFrames; i++) {
+				Path path = Path.of(String.format(input, i));
+				if (!Files.exists(path)) {
+					break;
+				}
+				frames.add(path);
+			}
+		} else {
+			Path pattern = Path.of(input);
+			Path dir = pattern.getParent() != null ? pattern.getParent() : Path.of(".");
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern.getFileName());
+			try (Stream<Path> files = Files.list(dir)) {
+				files.filter(p -> matcher.matches(p.getFileName())).sorted().forEach(frames::add);
+			}
+			if (maxFrames >= 0 && frames.size() > maxFrames) {
+				frames.subList(maxFrames, frames.size()).clear();
+			}
+		}
+		if (frames.isEmpty()) {
+			throw new IOException("No input frames found at " + input);
+		}
+		return new PngFrameInput(frames, width, height);
+	}
+
+	/**
+	 * @return A buffer for one frame of samples.
+	 */
+	public byte[] acquireBuffer() {
+		byte[] buffer = buffers.poll();
+		return buffer != null ? buffer : new byte[width * height];
+	}
+
+	public void releaseBuffer(byte[] buffer) {
+		buffers.add(buffer);
+	}
+
+	protected byte[] acquireSourceBuffer(int size) {
+		byte[] buffer = sourceBuffers.computeIfAbsent(size, k -> new ConcurrentLinkedQueue<>()).poll();
+		return buffer != null ? buffer : new byte[size];
+	}
+
+	protected void releaseSourceBuffer(byte[] buffer) {
+		sourceBuffers.computeIfAbsent(buffer.length, k -> new ConcurrentLinkedQueue<>()).add(buffer);
+	}
+
+	protected GrayResampler getResampler(int srcWidth, int srcHeight) {
+		return resamplers.computeIfAbsent(((long) srcWidth << 32) | srcHeight, k -> new GrayResampler(srcWidth, srcHeight, width, height));
+	}
+
+	/**
+	 * @return The number of frames, or -1 if it is not known before reading them all.
+	 */
+	public abstract int getFrameCount();
+
+	/**
+	 * Read a frame.
+	 *
+	 * @param dest The buffer to read the samples into, or null to skip the frame (which, for streams, must still be read).
+	 * @return Whether there is such a frame.
+	 */
+	public abstract boolean read(int index, byte[] dest) throws IOException;
+
+	@Override
+	public void close() throws IOException {
+	}
+}
@@ -0,0 +1,105 @@
+package pl.asie.bawsvq;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads frames on a pool of worker threads and hands them to a single consumer in frame order.
+ * At most {@code window} frames are in flight or waiting to be consumed at any given time.
+ * The workers form a {@link ForkJoinPool}, which sources may share with finer-grained tasks
+ * (see {@link ImageQuantizer#quantize(java.awt.image.BufferedImage, ForkJoinPool)}).
+ */
+public class FramePipeline implements AutoCloseable {
+	@FunctionalInterface
+	public interface FrameSource<T> {
+		T load(int index) throws IOException;
+	}
+
+	@FunctionalInterface
+	public interface FrameConsumer<T> {
+		void accept(int index, T frame) throws IOException;
+	}
+
+	@Getter
+	private final ForkJoinPool pool;
+	private final int window;
+
+	public FramePipeline(int threads, int window) {
+		if (threads < 1 || window < 1) {
+			throw new IllegalArgumentException("threads and window must be positive");
+		}
+		this.pool = new ForkJoinPool(threads);
+		this.window = window;
+	}
+
+	public FramePipeline(int threads) {
+		this(threads, threads * 4);
+	}
+
+	/**
+	 * @param count The number of frames, or {@link Integer#MAX_VALUE} to run until the source returns null
+	 *              (sources of unknown length must do so for every frame past the end).
+	 * @return The number of frames consumed.
+	 */
+	public <T> int run(int count, FrameSource<T> source, FrameConsumer<T> consumer) throws IOException {
+		return run(count, window, source, consumer);
+	}
+
+	/**
+	 * As {@link #run(int, FrameSource, FrameConsumer)}, with at most the given number of frames in flight or waiting,
+	 * for frames much larger or smaller than a single image.
+	 */
+	public <T> int run(int count, int window, FrameSource<T> source, FrameConsumer<T> consumer) throws IOException {
+		if (window < 1) {
+			throw new IllegalArgumentException("window must be positive");
+		}
+		Deque<Future<T>> pending = new ArrayDeque<>(window);
+		int submitted = 0;
+		try {
+			for (int i = 0; i < count; i++) {
+				while (submitted < count && pending.size() < window) {
+					int index = submitted++;
+					pending.addLast(pool.submit(() -> source.load(index)));
+				}
+				T frame = await(pending.removeFirst());
+				if (frame == null) {
+					return i;
+				}
+				consumer.accept(i, frame);
+			}
+			return count;
+		} finally {
+			for (Future<T> future : pending) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for frame", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioe) {
+				throw ioe;
+			} else if (e.getCause() instanceof RuntimeException re) {
+				throw re;
+			} else {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		pool.shutdownNow();
+	}
+}
@@ -0,0 +1,85 @@
+package pl.asie.bawsvq;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Per-frame statistics of an encoded command stream.
+ */
+public class FrameStats {
+	private final IntArrayList placedTiles = new IntArrayList();
+	private final IntArrayList uploads = new IntArrayList();
+	private final IntArrayList commandBytes = new IntArrayList();
+	private final IntArrayList deferredTiles = new IntArrayList();
+	private final IntArrayList deferredError = new IntArrayList();
+
+	void add(int placedTiles, int uploads, int commandBytes, int deferredTiles, int deferredError) {
+		this.placedTiles.add(placedTiles);
+		this.uploads.add(uploads);
+		this.commandBytes.add(commandBytes);
+		this.deferredTiles.add(deferredTiles);
+		this.deferredError.add(deferredError);
+	}
+
+	public int getFrameCount() {
+		return uploads.size();
+	}
+
+	public int getPlacedTiles(int frame) {
+		return placedTiles.getInt(frame);
+	}
+
+	public int getUploads(int frame) {
+		return uploads.getInt(frame);
+	}
+
+	public int getCommandBytes(int frame) {
+		return commandBytes.getInt(frame);
+	}
+
+	/**
+	 * @return The number of tile positions still showing stale content at the end of the frame.
+	 */
+	public int getDeferredTiles(int frame) {
+		return deferredTiles.getInt(frame);
+	}
+
+	/**
+	 * @return The summed pixel error of the tile positions still showing stale content at the end of the frame.
+	 */
+	public int getDeferredError(int frame) {
+		return deferredError.getInt(frame);
+	}
+
+	private static int max(IntArrayList list) {
+		int max = 0;
+		for (int i = 0; i < list.size(); i++) {
+			max = Math.max(max, list.getInt(i));
+		}
+		return max;
+	}
+
+	public int getMaxUploads() {
+		return max(uploads);
+	}
+
+	public int getMaxCommandBytes() {
+		return max(commandBytes);
+	}
+
+	public int getMaxDeferredTiles() {
+		return max(deferredTiles);
+	}
+
+	public void writeCsv(Writer writer) {
+		PrintWriter out = new PrintWriter(writer);
+		out.println("frame,placed_tiles,uploads,command_bytes,deferred_tiles,deferred_error");
+		for (int i = 0; i < getFrameCount(); i++) {
+			out.println(i + "," + placedTiles.getInt(i) + "," + uploads.getInt(i) + "," + commandBytes.getInt(i)
+					+ "," + deferredTiles.getInt(i) + "," + deferredError.getInt(i));
+		}
+		out.flush();
+	}
+}
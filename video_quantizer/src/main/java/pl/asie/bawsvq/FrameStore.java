@@ -0,0 +1,188 @@
+package pl.asie.bawsvq;
+
+import com.google.common.hash.Hashing;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On-disk cache of quantized frames: a fixed header followed by one 2bpp record per frame.
+ * Records are read through memory-mapped chunks, and new frames may be appended at any time.
+ */
+public class FrameStore implements Closeable {
+	private static final int MAGIC = 0x53464142; // "BAFS"
+	// 2: frames keyed on Ditherer.getKey()
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 32;
+	private static final int FRAME_COUNT_OFFSET = 24;
+	private static final long MAX_CHUNK_SIZE = 1L << 30;
+
+	private final FileChannel channel;
+	@Getter
+	private final int width, height, steps;
+	@Getter
+	private final int recordSize;
+	private final int chunkFrames;
+	private final List<MappedByteBuffer> chunks = new ArrayList<>();
+	private final ByteBuffer countBuffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+	private volatile int frameCount;
+
+	private FrameStore(FileChannel channel, int width, int height, int steps, int frameCount) {
+		if (steps > 4) {
+			throw new IllegalArgumentException("Frame store only supports up to 2bpp images");
+		}
+		this.channel = channel;
+		this.width = width;
+		this.height = height;
+		this.steps = steps;
+		this.recordSize = ((width * height) + 3) >> 2;
+		this.chunkFrames = (int) Math.max(1, Math.min(65536, MAX_CHUNK_SIZE / this.recordSize));
+		this.frameCount = frameCount;
+	}
+
+	/**
+	 * Open a frame store for frames produced by the given quantizer.
+	 * If the file does not exist, or was written with different settings, it is truncated and started anew.
+	 */
+	public static FrameStore open(Path path, ImageQuantizer quantizer) throws IOException {
+		int dithererId = quantizer.getDitherer() != null
+				? Hashing.murmur3_32_fixed().hashString(quantizer.getDitherer().getKey(), StandardCharsets.UTF_8).asInt() : 0;
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			if (channel.size() >= HEADER_SIZE) {
+				channel.read(header, 0);
+				header.flip();
+				if (header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+						&& header.getInt(8) == quantizer.getWidth() && header.getInt(12) == quantizer.getHeight()
+						&& header.getInt(16) == quantizer.getSteps() && header.getInt(20) == dithererId) {
+					FrameStore store = new FrameStore(channel, quantizer.getWidth(), quantizer.getHeight(), quantizer.getSteps(), header.getInt(FRAME_COUNT_OFFSET));
+					long expectedSize = HEADER_SIZE + (long) store.frameCount * store.recordSize;
+					if (channel.size() >= expectedSize) {
+						channel.truncate(expectedSize);
+						return store;
+					}
+				}
+				header.clear();
+			}
+
+			channel.truncate(0);
+			header.putInt(MAGIC).putInt(VERSION)
+					.putInt(quantizer.getWidth()).putInt(quantizer.getHeight())
+					.putInt(quantizer.getSteps()).putInt(dithererId)
+					.putInt(0);
+			header.position(0);
+			channel.write(header, 0);
+			return new FrameStore(channel, quantizer.getWidth(), quantizer.getHeight(), quantizer.getSteps(), 0);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open an existing frame store with whatever settings it was written with.
+	 */
+	public static FrameStore open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException("Not a frame store: " + path);
+			}
+			FrameStore store = new FrameStore(channel, header.getInt(8), header.getInt(12), header.getInt(16), header.getInt(FRAME_COUNT_OFFSET));
+			if (channel.size() < HEADER_SIZE + (long) store.frameCount * store.recordSize) {
+				throw new IOException("Truncated frame store: " + path);
+			}
+			return store;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	private synchronized MappedByteBuffer chunk(int index) throws IOException {
+		int chunkId = index / chunkFrames;
+		while (chunks.size() <= chunkId) {
+			chunks.add(null);
+		}
+		MappedByteBuffer buffer = chunks.get(chunkId);
+		int chunkStart = chunkId * chunkFrames;
+		int offset = (index - chunkStart) * recordSize;
+		if (buffer == null || buffer.capacity() < offset + recordSize) {
+			int chunkLength = Math.min(chunkFrames, frameCount - chunkStart);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + (long) chunkStart * recordSize, (long) chunkLength * recordSize);
+			chunks.set(chunkId, buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return A read-only view of the packed record for a given frame, four pixels per byte, least significant bits first.
+	 */
+	public ByteBuffer getRecord(int index) throws IOException {
+		if (index < 0 || index >= frameCount) {
+			throw new IndexOutOfBoundsException(index);
+		}
+		return chunk(index).slice((index % chunkFrames) * recordSize, recordSize);
+	}
+
+	public QuantizedImage get(int index) throws IOException {
+		return unpack(getRecord(index), width, height, steps);
+	}
+
+	/**
+	 * Pack an image of at most 4 levels into a record, four pixels per byte, least significant bits first.
+	 */
+	static ByteBuffer pack(QuantizedImage image) {
+		byte[] data = image.getData();
+		ByteBuffer record = ByteBuffer.allocate((data.length + 3) >> 2);
+		for (int i = 0; i < data.length; i++) {
+			record.put(i >> 2, (byte) (record.get(i >> 2) | (data[i] << ((i & 3) << 1))));
+		}
+		return record;
+	}
+
+	static QuantizedImage unpack(ByteBuffer record, int width, int height, int steps) {
+		byte[] data = new byte[width * height];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ((record.get(i >> 2) >> ((i & 3) << 1)) & 3);
+		}
+		return new QuantizedImage(width, height, steps, data);
+	}
+
+	public synchronized void append(QuantizedImage image) throws IOException {
+		if (image.getWidth() != width || image.getHeight() != height || image.getSteps() != steps) {
+			throw new IllegalArgumentException("Image does not match frame store format");
+		}
+		ByteBuffer record = pack(image);
+		long position = HEADER_SIZE + (long) frameCount * recordSize;
+		while (record.hasRemaining()) {
+			position += channel.write(record, position);
+		}
+		countBuffer.clear();
+		countBuffer.putInt(0, frameCount + 1);
+		channel.write(countBuffer, FRAME_COUNT_OFFSET);
+		frameCount++;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,27 @@
+package pl.asie.bawsvq;
+
+/**
+ * The tiles one frame changes, found ahead of encoding by {@link ShardedTileAnalyzer}.
+ */
+public final class FrameTiles {
+	final int count;
+	/**
+	 * Tile positions, in ascending order.
+	 */
+	final int[] positions;
+	/**
+	 * The tiles, two planes each, after remapping.
+	 */
+	final long[] tiles;
+	/**
+	 * The dictionary id of each tile's canonical form, with the transform to it in the top byte.
+	 */
+	final int[] keys;
+
+	FrameTiles(int count) {
+		this.count = count;
+		this.positions = new int[count];
+		this.tiles = new long[count * 2];
+		this.keys = new int[count];
+	}
+}
@@ -0,0 +1,105 @@
+package pl.asie.bawsvq;
+
+import java.util.Arrays;
+
+/**
+ * Separable bicubic (Catmull-Rom) resampling of 8-bit planes between two fixed sizes.
+ * <p>
+ * The taps and weights of each output row and column are computed once, with edge pixels repeated.
+ * When downscaling, the kernel is stretched by the scale factor, so every input pixel contributes.
+ * Resampling to the same size is a copy.
+ */
+final class GrayResampler {
+	private final int srcWidth, srcHeight, destWidth, destHeight;
+	private final Axis horizontal, vertical;
+	private final ThreadLocal<float[]> intermediate;
+
+	private static final class Axis {
+		private final int taps;
+		// per output pixel, taps source indices and weights
+		private final int[] indices;
+		private final float[] weights;
+
+		private Axis(int srcSize, int destSize) {
+			double scale = (double) srcSize / destSize;
+			double stretch = Math.max(1.0, scale);
+			double radius = 2.0 * stretch;
+			this.taps = (int) Math.ceil(radius * 2) + 1;
+			this.indices = new int[destSize * taps];
+			this.weights = new float[destSize * taps];
+			for (int i = 0; i < destSize; i++) {
+				double center = (i + 0.5) * scale - 0.5;
+				int first = (int) Math.floor(center - radius) + 1;
+				double sum = 0;
+				for (int t = 0; t < taps; t++) {
+					sum += kernel((first + t - center) / stretch);
+				}
+				for (int t = 0; t < taps; t++) {
+					indices[i * taps + t] = Math.min(Math.max(first + t, 0), srcSize - 1);
+					weights[i * taps + t] = (float) (kernel((first + t - center) / stretch) / sum);
+				}
+			}
+		}
+
+		private static double kernel(double x) {
+			x = Math.abs(x);
+			if (x < 1) {
+				return 1.5 * x * x * x - 2.5 * x * x + 1;
+			} else if (x < 2) {
+				return -0.5 * x * x * x + 2.5 * x * x - 4 * x + 2;
+			} else {
+				return 0;
+			}
+		}
+	}
+
+	GrayResampler(int srcWidth, int srcHeight, int destWidth, int destHeight) {
+		this.srcWidth = srcWidth;
+		this.srcHeight = srcHeight;
+		this.destWidth = destWidth;
+		this.destHeight = destHeight;
+		this.horizontal = new Axis(srcWidth, destWidth);
+		this.vertical = new Axis(srcHeight, destHeight);
+		this.intermediate = ThreadLocal.withInitial(() -> new float[(srcHeight + 1) * destWidth]);
+	}
+
+	void resample(byte[] src, byte[] dest) {
+		if (srcWidth == destWidth && srcHeight == destHeight) {
+			System.arraycopy(src, 0, dest, 0, destWidth * destHeight);
+			return;
+		}
+
+		float[] rows = intermediate.get();
+		int hTaps = horizontal.taps;
+		for (int y = 0; y < srcHeight; y++) {
+			int srcRow = y * srcWidth;
+			int row = y * destWidth;
+			for (int x = 0; x < destWidth; x++) {
+				float sum = 0;
+				for (int t = x * hTaps, end = t + hTaps; t < end; t++) {
+					sum += (src[srcRow + horizontal.indices[t]] & 0xFF) * horizontal.weights[t];
+				}
+				rows[row + x] = sum;
+			}
+		}
+
+		// the last row of the scratch buffer accumulates one output row, going down the intermediate rows
+		int vTaps = vertical.taps;
+		int acc = srcHeight * destWidth;
+		for (int y = 0; y < destHeight; y++) {
+			Arrays.fill(rows, acc, acc + destWidth, 0f);
+			for (int t = y * vTaps, end = t + vTaps; t < end; t++) {
+				int row = vertical.indices[t] * destWidth;
+				float weight = vertical.weights[t];
+				for (int x = 0; x < destWidth; x++) {
+					rows[acc + x] += rows[row + x] * weight;
+				}
+			}
+			int destRow = y * destWidth;
+			for (int x = 0; x < destWidth; x++) {
+				int v = (int) (rows[acc + x] + 0.5f);
+				dest[destRow + x] = (byte) (v < 0 ? 0 : (v > 255 ? 255 : v));
+			}
+		}
+	}
+}
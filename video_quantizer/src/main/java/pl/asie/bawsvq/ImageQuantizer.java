@@ -1,138 +1,298 @@
 package pl.asie.bawsvq;
 
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 @Getter
-@RequiredArgsConstructor
 public class ImageQuantizer {
-	@FunctionalInterface
-	public interface GrayPixelAccess {
-		float get(BufferedImage image, int x, int y);
-	}
+	private static final int PAD = QuantizerWorkspace.PAD;
+	private static final int HALO = QuantizerWorkspace.HALO;
+	private static final int MIN_BAND_ROWS = 32;
 
 	private final int width, height, steps;
+	private final Ditherer ditherer;
+	/**
+	 * The dither matrix of an {@link OrderedDitherer}, which is applied while quantizing; null for other ditherers.
+	 */
 	private final OrderedDitherMatrix matrix;
+	private final PixelKernels kernels;
+	@Getter(AccessLevel.NONE)
+	private final ThreadLocal<QuantizerWorkspace> workspace;
+
+	public ImageQuantizer(int width, int height, int steps, OrderedDitherMatrix matrix) {
+		this(width, height, steps, matrix, PixelKernels.get());
+	}
+
+	public ImageQuantizer(int width, int height, int steps, OrderedDitherMatrix matrix, PixelKernels kernels) {
+		this(width, height, steps, matrix != null ? new OrderedDitherer(matrix) : null, kernels);
+	}
+
+	public ImageQuantizer(int width, int height, int steps, Ditherer ditherer) {
+		this(width, height, steps, ditherer, PixelKernels.get());
+	}
+
+	/**
+	 * @param ditherer The ditherer, or null to truncate tones to levels.
+	 */
+	public ImageQuantizer(int width, int height, int steps, Ditherer ditherer, PixelKernels kernels) {
+		this.width = width;
+		this.height = height;
+		this.steps = steps;
+		this.ditherer = ditherer;
+		this.matrix = ditherer instanceof OrderedDitherer ordered ? ordered.getMatrix() : null;
+		this.kernels = kernels;
+		this.workspace = ThreadLocal.withInitial(() -> new QuantizerWorkspace(width, height, matrix));
+	}
 
-	private float asGray(int rgb) {
-		// float v = ((rgb >> 8) & 0xFF) / 256.0f;
-		float v = ((rgb >> 8) & 0xFC) / 252.0f;
-		if (v < 0.1f) {
-			return 0.0f;
-		} else if (v > 0.9f) {
-			return 1.0f;
+	/**
+	 * @return Whether quantizing goes through a tone plane and {@link Ditherer#dither}, rather than dithering in the kernels.
+	 */
+	private boolean usesTones() {
+		return ditherer != null && matrix == null;
+	}
+
+	private final class BandTask extends RecursiveAction {
+		private final int[] pixels;
+		private final byte[] samples;
+		// exactly one of data and tones is set
+		private final byte[] data;
+		private final float[] tones;
+		private final int yFrom, yTo;
+
+		private BandTask(int[] pixels, byte[] samples, byte[] data, float[] tones, int yFrom, int yTo) {
+			this.pixels = pixels;
+			this.samples = samples;
+			this.data = data;
+			this.tones = tones;
+			this.yFrom = yFrom;
+			this.yTo = yTo;
+		}
+
+		@Override
+		protected void compute() {
+			if ((yTo - yFrom) < MIN_BAND_ROWS * 2) {
+				quantizeBand(pixels, samples, data, tones, yFrom, yTo);
+			} else {
+				int yMid = (yFrom + yTo) >>> 1;
+				invokeAll(new BandTask(pixels, samples, data, tones, yFrom, yMid), new BandTask(pixels, samples, data, tones, yMid, yTo));
+			}
+		}
+	}
+
+	private BufferedImage scale(BufferedImage src) {
+		BufferedImage src2 = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = src2.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+//		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		AffineTransform t = AffineTransform.getScaleInstance(
+				(float) this.width / src.getWidth(),
+				(float) this.height / src.getHeight()
+		);
+		g2d.drawRenderedImage(src, t);
+		g2d.dispose();
+		return src2;
+	}
+
+	private int[] getPixels(BufferedImage src) {
+		if (src.getWidth() != this.width || src.getHeight() != this.height) {
+			src = scale(src);
+		}
+		Raster raster = src.getRaster();
+		if ((src.getType() == BufferedImage.TYPE_INT_RGB || src.getType() == BufferedImage.TYPE_INT_ARGB)
+				&& raster.getDataBuffer() instanceof DataBufferInt buffer
+				&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel
+				&& sampleModel.getScanlineStride() == this.width
+				&& buffer.getOffset() == 0 && buffer.getNumBanks() == 1
+				&& raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+			return buffer.getData();
 		} else {
-			return (v - 0.1f) * (1f/0.8f);
+			return src.getRGB(0, 0, this.width, this.height, null, 0, this.width);
+		}
+	}
+
+	private int clampRow(int y) {
+		return y < 0 ? 0 : (y >= this.height ? this.height - 1 : y);
+	}
+
+	private static void padRow(float[] plane, int row, int pw) {
+		float left = plane[row + PAD];
+		float right = plane[row + pw - PAD - 1];
+		for (int i = 0; i < PAD; i++) {
+			plane[row + i] = left;
+			plane[row + pw - 1 - i] = right;
 		}
 	}
 
-	private float asGray(BufferedImage image, int x, int y) {
-		if (x < 0) x = 0;
-		else if (x >= image.getWidth()) x = image.getWidth() - 1;
-		if (y < 0) y = 0;
-		else if (y >= image.getHeight()) y = image.getHeight() - 1;
-		return asGray(image.getRGB(x, y));
+	/**
+	 * Fill the gray plane with image rows [firstRow, firstRow + rows), clamped to the image,
+	 * from either packed RGB pixels or 8-bit samples.
+	 */
+	private void loadGray(int[] pixels, byte[] samples, QuantizerWorkspace ws, int firstRow, int rows) {
+		for (int j = 0; j < rows; j++) {
+			int row = j * ws.pw;
+			if (pixels != null) {
+				kernels.gray(pixels, clampRow(firstRow + j) * this.width, ws.gray, row + PAD, this.width);
+			} else {
+				kernels.gray(samples, clampRow(firstRow + j) * this.width, ws.gray, row + PAD, this.width);
+			}
+			padRow(ws.gray, row, ws.pw);
+		}
 	}
-	private float fromArray(float[] data, int x, int y, int width, int height) {
-		if (x < 0) x = 0;
-		else if (x >= width) x = width - 1;
-		if (y < 0) y = 0;
-		else if (y >= height) y = height - 1;
-		return data[y * width + x];
+
+	/**
+	 * Compute the Laplacian plane for the band starting at image row yFrom.
+	 * As the Laplacian itself is edge-clamped, halo rows outside the image repeat the edge row's Laplacian.
+	 */
+	private void computeLaplacian(QuantizerWorkspace ws, int yFrom, int rows) {
+		int pw = ws.pw;
+		int grayFirstRow = yFrom - HALO;
+		for (int k = 0; k < rows; k++) {
+			int r = clampRow(yFrom - PAD + k);
+			int row = k * pw;
+			kernels.laplacianRow(ws,
+					(r - 1 - grayFirstRow) * pw + PAD,
+					(r - grayFirstRow) * pw + PAD,
+					(r + 1 - grayFirstRow) * pw + PAD,
+					row + PAD);
+			padRow(ws.laplacian, row, pw);
+		}
 	}
 
-	private float laplacian(BufferedImage src, int ix, int iy, GrayPixelAccess getter) {
-		return getter.get(src, ix, iy-1)
-				+ getter.get(src, ix, iy+1)
-				+ getter.get(src, ix-1, iy)
-				+ getter.get(src, ix+1, iy)
-				- (getter.get(src, ix, iy)*4);
+	/**
+	 * Compute horizontal 3- and 5-wide windows over the gray and Laplacian planes.
+	 */
+	private void computeRowWindows(QuantizerWorkspace ws, int rows) {
+		int pw = ws.pw;
+		for (int k = 0; k < rows; k++) {
+			kernels.rowWindows(ws, (k + 1) * pw + PAD, k * pw + PAD, k * this.width);
+		}
+	}
+
+	/**
+	 * Combine the row windows into the 21-pixel neighbourhood (a 5x5 square without its corners),
+	 * which is the union of a 5x3 and a 3x5 rectangle, and quantize rows [yFrom, yTo).
+	 */
+	private void quantizeRows(QuantizerWorkspace ws, byte[] data, int yFrom, int yTo) {
+		for (int iy = yFrom; iy < yTo; iy++) {
+			kernels.quantizeRow(ws,
+					(iy - yFrom + PAD) * this.width,
+					(iy - yFrom + HALO) * ws.pw + PAD,
+					ws.getRatioRow(iy), this.steps, data, iy * this.width);
+		}
+	}
+
+	private void toneRows(QuantizerWorkspace ws, float[] tones, int yFrom, int yTo) {
+		for (int iy = yFrom; iy < yTo; iy++) {
+			kernels.toneRow(ws,
+					(iy - yFrom + PAD) * this.width,
+					(iy - yFrom + HALO) * ws.pw + PAD,
+					tones, iy * this.width);
+		}
+	}
+
+	private void quantizeBand(int[] pixels, byte[] samples, byte[] data, float[] tones, int yFrom, int yTo) {
+		QuantizerWorkspace ws = workspace.get();
+		int rows = yTo - yFrom;
+		loadGray(pixels, samples, ws, yFrom - HALO, rows + HALO * 2);
+		computeLaplacian(ws, yFrom, rows + PAD * 2);
+		computeRowWindows(ws, rows + PAD * 2);
+		if (tones != null) {
+			toneRows(ws, tones, yFrom, yTo);
+		} else {
+			quantizeRows(ws, data, yFrom, yTo);
+		}
 	}
 
 	public QuantizedImage quantize(BufferedImage src) {
-		if (src.getWidth() != this.width || src.getHeight() != this.height) {
-			BufferedImage src2 = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
-			Graphics2D g2d = src2.createGraphics();
-			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-//			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
-			AffineTransform t = AffineTransform.getScaleInstance(
-					(float) this.width / src.getWidth(),
-					(float) this.height / src.getHeight()
-			);
-			g2d.drawRenderedImage(src, t);
-			src = src2;
+		if (usesTones()) {
+			float[] tones = new float[this.width * this.height];
+			quantizeBand(getPixels(src), null, null, tones, 0, this.height);
+			return dither(tones, null);
 		}
 		byte[] data = new byte[this.width * this.height];
-		int i = 0;
-		float[] laplacianData = new float[this.width * this.height];
-		for (int iy = 0; iy < this.height; iy++) {
-			for (int ix = 0; ix < this.width; ix++, i++) {
-				laplacianData[i] = laplacian(src, ix, iy, this::asGray);
+		quantizeBand(getPixels(src), null, data, null, 0, this.height);
+		return new QuantizedImage(this.width, this.height, this.steps, data);
+	}
+
+	/**
+	 * Quantize an image, splitting it into row bands on the given pool. The output is identical to {@link #quantize(BufferedImage)}.
+	 * When called from one of the pool's own workers (for example, while quantizing many frames at once),
+	 * the bands are forked into that pool, so idle workers pick them up without oversubscribing the machine.
+	 */
+	public QuantizedImage quantize(BufferedImage src, ForkJoinPool pool) {
+		return quantize(getPixels(src), null, pool);
+	}
+
+	/**
+	 * Quantize 8-bit samples already at the quantizer's size, such as those read by a {@link FrameInput},
+	 * as {@link #quantize(BufferedImage, ForkJoinPool)} would quantize an image with them in its green channel.
+	 * Temporal ditherers are applied as if to the first frame; see {@link #dither(float[], QuantizedImage)}.
+	 */
+	public QuantizedImage quantize(byte[] samples, ForkJoinPool pool) {
+		checkSamples(samples);
+		return quantize(null, samples, pool);
+	}
+
+	/**
+	 * Compute the edge-enhanced tones of 8-bit samples, for dithering them later with {@link #dither(float[], QuantizedImage)}.
+	 */
+	public float[] computeTones(byte[] samples, ForkJoinPool pool) {
+		checkSamples(samples);
+		BandTask task = new BandTask(null, samples, null, new float[this.width * this.height], 0, this.height);
+		invoke(task, pool);
+		return task.tones;
+	}
+
+	/**
+	 * Dither tones with this quantizer's ditherer. Error diffusion is serial within a frame, so this is best called for
+	 * several frames at once; temporal ditherers, however, need the frames in order.
+	 *
+	 * @param previous The previous frame's output, for temporal ditherers; null for the first frame.
+	 */
+	public QuantizedImage dither(float[] tones, QuantizedImage previous) {
+		byte[] data = new byte[this.width * this.height];
+		if (ditherer != null) {
+			ditherer.dither(tones, this.width, this.height, this.steps, previous != null ? previous.getData() : null, data);
+		} else {
+			for (int i = 0; i < data.length; i++) {
+				data[i] = (byte) (tones[i] * this.steps);
 			}
 		}
-		i = 0;
-		for (int iy = 0; iy < this.height; iy++) {
-			for (int ix = 0; ix < this.width; ix++, i++) {
-				float grayValue = asGray(src.getRGB(ix, iy));
-
-				float maxValue = 0.0f;
-				float pMaxValue = grayValue;
-				float pMinValue = grayValue;
-				float pAvgValue = 0.0f;
-				for (int nx = -2; nx <= 2; nx++) {
-					for (int ny = -2; ny <= 2; ny++) {
-						if (Math.abs(nx) == 2 && Math.abs(ny) == 2) continue;
-						int inx = ix + nx;
-						int iny = iy + ny;
-						float pGrayValue = asGray(src, inx, iny);
-						pAvgValue += (pGrayValue / 21.0f);
-						if (pGrayValue > pMaxValue) {
-							pMaxValue = pGrayValue;
-						}
-						if (pGrayValue < pMinValue) {
-							pMinValue = pGrayValue;
-						}
-					}
-				}
-				for (int nx = -2; nx <= 2; nx++) {
-					for (int ny = -2; ny <= 2; ny++) {
-						if (Math.abs(nx) == 2 && Math.abs(ny) == 2) continue;
-						int inx = ix+nx;
-						int iny = iy+ny;
-						// float nGrayValue = laplacian(src, inx, iny, this::asGray);
-						float nGrayValue = fromArray(laplacianData, inx, iny, width, height);
-						if (nGrayValue > maxValue) {
-							maxValue = nGrayValue;
-						}
-					}
-				}
-
-				if (maxValue >= 0.5f) {
-					grayValue = (grayValue >= pAvgValue) ? pMaxValue : pMinValue;
-				}
-
-				if (this.matrix != null) {
-					float steppedValue = grayValue * (steps - 1);
-					int svMin = (int) Math.floor(steppedValue);
-					int svMax = (int) Math.ceil(steppedValue);
-					float matrixPoint = svMin + this.matrix.getRatio(ix, iy);
-					int sv = (steppedValue >= matrixPoint) ? svMax : svMin;
-					data[i] = (byte) sv;
-				} else {
-					float steppedValue = grayValue * steps;
-					data[i] = (byte) steppedValue;
-				}
- 			}
-		}
 		return new QuantizedImage(this.width, this.height, this.steps, data);
 	}
+
+	private void checkSamples(byte[] samples) {
+		if (samples.length < this.width * this.height) {
+			throw new IllegalArgumentException("Expected " + (this.width * this.height) + " samples, got " + samples.length);
+		}
+	}
+
+	private QuantizedImage quantize(int[] pixels, byte[] samples, ForkJoinPool pool) {
+		if (usesTones()) {
+			BandTask task = new BandTask(pixels, samples, null, new float[this.width * this.height], 0, this.height);
+			invoke(task, pool);
+			return dither(task.tones, null);
+		}
+		BandTask task = new BandTask(pixels, samples, new byte[this.width * this.height], null, 0, this.height);
+		invoke(task, pool);
+		return new QuantizedImage(this.width, this.height, this.steps, task.data);
+	}
+
+	private static void invoke(BandTask task, ForkJoinPool pool) {
+		if (ForkJoinTask.getPool() == pool) {
+			task.invoke();
+		} else {
+			pool.invoke(task);
+		}
+	}
 }
@@ -1,112 +1,350 @@
 package pl.asie.bawsvq;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.ParameterException;
+import com.google.common.hash.HashCode;
+import it.unimi.dsi.fastutil.ints.Int2BooleanSortedMap;
+
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.List;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.IntStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
 
 public class Main {
-	private static List<QuantizedImage> loadImages(ImageQuantizer q) {
-		AtomicInteger steps = new AtomicInteger();
-		return IntStream.rangeClosed(1, 6572)
-				.sorted()
-				.parallel()
-				.mapToObj(i -> {
-					try {
-						int k;
-						if (((k = steps.incrementAndGet()) % 100) == 0) {
-							System.out.println("read progress: " + k);
-						}
-						BufferedImage img = ImageIO.read(new File(String.format("../frames/%05d.png", i)));
-						return q.quantize(img);
-					} catch (IOException e) {
-						throw new RuntimeException(e);
-					}
-				}).toList();
+	private static final double DISPLAY_RATE = 12000.0 / 159.0;
+
+	private static final class StageTimer {
+		private final EncoderMetrics metrics;
+		private final boolean print;
+		private String stage;
+		private long stageStart;
+
+		private StageTimer(EncoderMetrics metrics, boolean print) {
+			this.metrics = metrics;
+			this.print = print;
+		}
+
+		private void start(String name) {
+			finish();
+			stage = name;
+			stageStart = System.nanoTime();
+		}
+
+		private void finish() {
+			if (stage != null) {
+				long elapsed = System.nanoTime() - stageStart;
+				metrics.timer("stage." + stage + "_ms").record(elapsed);
+				if (print) {
+					System.out.printf("%s: %.1f ms%n", stage, elapsed / 1e6);
+				}
+			}
+			stage = null;
+		}
+	}
+
+	/**
+	 * A loaded frame: either quantized already (or found in the cache), or, for temporal dithering, dithered in frame order
+	 * from its tones, or from its samples if it is likely to be found in the cache once the previous frame is known.
+	 */
+	private record LoadedFrame(QuantizedImage image, boolean quantized, float[] tones, byte[] samples, HashCode source) {
+	}
+
+	private static LoadedFrame loadFrame(FrameInput input, ImageQuantizer q, FrameCache cache, ForkJoinPool pool, int i, EncoderMetrics metrics) throws IOException {
+		byte[] samples = input.acquireBuffer();
+		try {
+			long start = System.nanoTime();
+			if (!input.read(i, samples)) {
+				return null;
+			}
+			metrics.timer("decode.frame_ms").recordSince(start);
+			boolean temporal = q.getDitherer() != null && q.getDitherer().isTemporal();
+			HashCode source = cache != null ? cache.hashSource(samples) : null;
+			if (cache != null && !temporal) {
+				QuantizedImage cached = cache.get(cache.getName(source, null));
+				if (cached != null) {
+					return new LoadedFrame(cached, false, null, null, source);
+				}
+			} else if (cache != null && cache.hasSource(source)) {
+				return new LoadedFrame(null, false, null, samples.clone(), source);
+			}
+			start = System.nanoTime();
+			LoadedFrame result = temporal
+					? new LoadedFrame(null, false, q.computeTones(samples, pool), null, source)
+					: new LoadedFrame(q.quantize(samples, pool), true, null, null, source);
+			metrics.timer("quantize.frame_ms").recordSince(start);
+			if (cache != null && !temporal) {
+				cache.put(cache.getName(source, null), result.image());
+			}
+			return result;
+		} finally {
+			input.releaseBuffer(samples);
+		}
+	}
+
+	private static void packFrame(TilePacker packer, Int2BooleanSortedMap borderChanges, int i, QuantizedImage img, FrameTiles frameTiles) throws IOException {
+		if (borderChanges.containsKey(i + 1)) {
+			packer.setBorderBlack(borderChanges.get(i + 1));
+		}
+		packer.addImage(img, frameTiles);
+	}
+
+	private static TilePacker createPacker(EncoderOptions options, TileAllocator allocator, TileRemap tileRemap, ScreenCachePlan screenCachePlan,
+			CommandSink commandSink, DecodeSimulator decodeSimulator, EncoderMetrics metrics) {
+		TilePacker packer = new TilePacker(options.width / 8, options.height / 8, options.steps, DISPLAY_RATE / options.fps, allocator);
+		packer.setCommandVersion(options.commandVersion);
+		packer.setMaxTileDistance(options.lossyDistance);
+		packer.setFrameBudget(options.maxUploads, options.maxCommandBytes);
+		packer.setTileRemap(tileRemap);
+		packer.setScreenCachePlan(screenCachePlan);
+		packer.setCommandSink(commandSink);
+		packer.setDecodeSimulator(decodeSimulator);
+		packer.setMetrics(metrics);
+		return packer;
 	}
 
-	private static void saveImages(List<QuantizedImage> images, Set<Integer> borderFlipFrames) throws IOException {
-		boolean borderIsBlack = true;
-		for (int i = 0; i < images.size(); i++) {
-			if (i > 0 && (i % 100) == 0) {
-				System.out.println("save progress: " + i);
+	private static void printDecodeTime(DecodeSimulator simulator) {
+		System.out.printf("decode time: %d of %d frames late, at most %.0f%% of a frame's time, %.1f ms behind at worst%n",
+				simulator.getLateFrames(), simulator.getFrameCount(), simulator.getMaxLoad() * 100, simulator.getMaxLagMillis());
+	}
+
+	private static void writeDecodeStats(DecodeSimulator simulator, EncoderOptions options) throws IOException {
+		if (!options.decodeStats.isEmpty()) {
+			try (FileWriter writer = new FileWriter(options.decodeStats)) {
+				simulator.writeCsv(writer);
 			}
-			if (borderFlipFrames.contains(i + 1)) {
-				borderIsBlack = !borderIsBlack;
+		}
+	}
+
+	/**
+	 * Estimate the decode time of an existing command stream, listing where the first late stretches begin.
+	 */
+	private static void simulate(EncoderOptions options) throws IOException {
+		DecodeSimulator simulator = new DecodeSimulator(options.steps);
+		simulator.setStrict(options.strictDecodeTime);
+		simulator.write(Files.readAllBytes(Path.of(options.simulate)));
+		if (!simulator.isEnded()) {
+			System.out.println("warning: the command stream has no end marker");
+		}
+		int listed = 0;
+		for (int i = 0; i < simulator.getFrameCount() && listed < 10; i++) {
+			if (simulator.getLagCycles(i) > 0 && (i == 0 || simulator.getLagCycles(i - 1) == 0)) {
+				System.out.printf("frame %d: %d cycles, with %d available%n", i, simulator.getCycles(i), simulator.getBudgetCycles(i));
+				listed++;
 			}
-			QuantizedImage img = images.get(i);
-			BufferedImage img2 = img.toBufferedImage();
-			BufferedImage imgFull = new BufferedImage(224, 144, BufferedImage.TYPE_INT_RGB);
-			Graphics2D g2d = imgFull.createGraphics();
-			g2d.setColor(borderIsBlack ? Color.BLACK : new Color(0xc0c0c0));
-			g2d.fillRect(0, 0, 224, 144);
-			g2d.drawImage(img2, 16, 0, null);
-			ImageIO.write(imgFull, "PNG", new File(String.format("temp/%05d.png", i)));
 		}
+		printDecodeTime(simulator);
+		writeDecodeStats(simulator, options);
 	}
 
 	public static void main(String[] args) throws Exception {
-		Set<Integer> borderFlipFrames = Set.of(
-				57, // w
-				443, // b
-				820, // w
-				1262, // b
-				1685, // w
-				1742, // b
-				2741, // w
-				2783, // b
-				3319, // w
-				3623, // b
-				3649, // w
-				3675, // b
-				3770, // w
-				4260, // b
-				4627, // w
-				5405, // b?
-				6139, // w
-				6513 // b
-		);
-		boolean is2bpp = true;
-
-		ImageQuantizer q = new ImageQuantizer(192, 144, is2bpp ? 4 : 2, OrderedDitherMatrix.MATRIX_4x4);
-		List<QuantizedImage> images;
-		File imageCache = new File("imageCache.bin");
-		if (imageCache.exists()) {
-			try (FileInputStream fis = new FileInputStream(imageCache); ObjectInputStream ois = new ObjectInputStream(fis)) {
-				images = (List<QuantizedImage>) ois.readObject();
+		EncoderOptions options = new EncoderOptions();
+		JCommander commander = JCommander.newBuilder().addObject(options).programName("video_quantizer").build();
+		try {
+			commander.parse(args);
+			if (options.help) {
+				commander.usage();
+				return;
 			}
-		} else {
-			images = loadImages(q);
-			try (FileOutputStream fos = new FileOutputStream(imageCache); ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-				oos.writeObject(images);
+			options.validate();
+		} catch (ParameterException e) {
+			System.err.println(e.getMessage());
+			commander.usage();
+			System.exit(1);
+		}
+		if (!options.simulate.isEmpty()) {
+			simulate(options);
+			return;
+		}
+		EncoderMetrics metrics = new EncoderMetrics();
+		ScheduledExecutorService sampler = options.sampleInterval > 0
+				? metrics.startSampling((long) (options.sampleInterval * 1000), System.out) : null;
+		try {
+			encode(options, metrics);
+		} finally {
+			if (sampler != null) {
+				sampler.shutdownNow();
+			}
+		}
+		metrics.sample(null);
+		if (!options.metricsJson.isEmpty()) {
+			try (FileWriter writer = new FileWriter(options.metricsJson)) {
+				metrics.writeJson(writer);
+			}
+		}
+		if (!options.metricsCsv.isEmpty()) {
+			try (FileWriter writer = new FileWriter(options.metricsCsv)) {
+				metrics.writeCsv(writer);
 			}
-			saveImages(images, borderFlipFrames);
 		}
+	}
+
+	public static void encode(EncoderOptions options, EncoderMetrics metrics) throws IOException {
+		StageTimer timer = new StageTimer(metrics, options.profile);
+		LongAdder framesLoaded = metrics.counter("load.frames");
+		int tileWidth = options.width / 8;
+		int tileHeight = options.height / 8;
+
+		DecodeSimulator decodeSimulator = new DecodeSimulator(options.steps);
+		decodeSimulator.setStrict(options.strictDecodeTime);
+		metrics.gauge("decode.late_frames", decodeSimulator::getLateFrames);
+		metrics.gauge("decode.max_load", decodeSimulator::getMaxLoad);
+		metrics.gauge("decode.max_lag_ms", decodeSimulator::getMaxLagMillis);
+
+		// the border file, if present, overrides the detected border colour changes
+		Path borderOverrideFile = Path.of(options.borderFile);
+		Int2BooleanSortedMap borderOverride = Files.exists(borderOverrideFile) ? BorderDetector.read(borderOverrideFile) : null;
+		BorderDetector borderDetector = new BorderDetector(0.8f, 0.2f, 15);
+		Path previewDir = options.preview.isEmpty() ? null : Files.createDirectories(Path.of(options.preview));
+		Path outputDir = Files.createDirectories(Path.of(options.output));
+
+		ImageQuantizer q = new ImageQuantizer(options.width, options.height, options.steps, Ditherer.byName(options.dither, options.temporalThreshold));
+		FrameCache cache = options.cache.isEmpty() ? null : FrameCache.open(Path.of(options.cache), options.cacheSize << 20, q);
+		if (cache != null) {
+			metrics.gauge("cache.hits", cache::getHits);
+			metrics.gauge("cache.misses", cache::getMisses);
+			metrics.gauge("cache.evictions", cache::getEvictions);
+			metrics.gauge("cache.bytes", cache::getSize);
+		}
+		// this run's frames, for the later stages to read back
+		Path storePath = Path.of(options.frameStore);
+		if (options.frameStore.isEmpty()) {
+			storePath = Files.createTempFile("video_quantizer", ".frames");
+			storePath.toFile().deleteOnExit();
+		} else {
+			Files.deleteIfExists(storePath);
+		}
+		TileClusterer clusterer = options.clusterTiles > 0 ? new TileClusterer(tileWidth, tileHeight, options.steps) : null;
+		boolean lookaheadAllocation = !options.noLookahead;
+		TilePacker packer;
+		try (FrameInput input = FrameInput.open(options.input, options.firstFrame, options.frames, options.width, options.height, options.rawWidth, options.rawHeight);
+			 FrameStore store = FrameStore.open(storePath, q);
+			 FramePipeline pipeline = new FramePipeline(options.threads);
+			 PreviewWriter previews = previewDir != null ? new PreviewWriter(previewDir, pipeline.getPool(), options.threads * 4) : null;
+			 CommandSink commands = CommandSink.open(outputDir.resolve("commands.bin"))) {
+			timer.start("quantize");
+			int frameCount = pipeline.run(input.getFrameCount() >= 0 ? input.getFrameCount() : Integer.MAX_VALUE,
+					i -> loadFrame(input, q, cache, pipeline.getPool(), i, metrics), new FramePipeline.FrameConsumer<>() {
+				private boolean borderIsBlack = true;
+				private QuantizedImage previous;
 
-		TilePacker packer = new TilePacker(24, 18, q.getSteps(),
-				(12000.0 / 159.0) / 30.0);
-		int frameCtr = 1;
-		for (QuantizedImage img : images) {
-			if (borderFlipFrames.contains(frameCtr++)) {
-				packer.toggleBorder();
+				@Override
+				public void accept(int i, LoadedFrame frame) throws IOException {
+					QuantizedImage img = frame.image();
+					boolean quantized = frame.quantized();
+					if (img == null) {
+						String name = cache != null ? cache.getName(frame.source(), previous) : null;
+						img = cache != null ? cache.get(name) : null;
+						if (img == null) {
+							float[] tones = frame.tones();
+							if (tones == null) {
+								long start = System.nanoTime();
+								tones = q.computeTones(frame.samples(), pipeline.getPool());
+								metrics.timer("quantize.frame_ms").recordSince(start);
+							}
+							long start = System.nanoTime();
+							img = q.dither(tones, previous);
+							metrics.timer("dither.frame_ms").recordSince(start);
+							if (cache != null) {
+								cache.put(name, img);
+							}
+							quantized = true;
+						}
+					}
+					previous = img;
+					framesLoaded.increment();
+					boolean detectedBlack = borderDetector.update(i + 1, BorderDetector.measure(img, 2));
+					if (borderOverride == null) {
+						borderIsBlack = detectedBlack;
+					} else if (borderOverride.containsKey(i + 1)) {
+						borderIsBlack = borderOverride.get(i + 1);
+					}
+					store.append(img);
+					if (quantized && previews != null) {
+						previews.write(img, i, borderIsBlack);
+					}
+					if (clusterer != null) {
+						clusterer.addImage(img);
+					}
+				}
+			});
+			if (frameCount == 0) {
+				throw new IOException("No input frames");
+			}
+			if (previews != null) {
+				previews.flush();
+			}
+			if (cache != null) {
+				System.out.printf("frame cache: %d hits, %d misses, %.1f MB%n", cache.getHits(), cache.getMisses(), cache.getSize() / 1048576.0);
 			}
-			packer.addImage(img);
+			if (!"".equals(options.detectedBorderFile)) {
+				BorderDetector.write(options.detectedBorderFile != null ? Path.of(options.detectedBorderFile)
+						: borderOverrideFile.resolveSibling("borderFlips.detected.txt"), borderDetector.getChanges());
+			}
+			Int2BooleanSortedMap borderChanges = borderOverride != null ? borderOverride : borderDetector.getChanges();
+
+			TileRemap tileRemap = null;
+			if (clusterer != null) {
+				timer.start("cluster");
+				tileRemap = clusterer.cluster(options.clusterTiles, 20, pipeline.getPool());
+				System.out.println("tile clustering: " + clusterer.getDistinctTileCount() + " -> " + tileRemap.getTileCount() + " tiles");
+			}
+
+			ScreenCachePlan screenCachePlan = null;
+			if (options.commandVersion >= TilePacker.COMMAND_VERSION_REPLAY && options.screenCacheSlots > 0) {
+				timer.start("plan");
+				// a saved screen keeps its tiles resident, so it may hold on to at most an eighth of the slots
+				screenCachePlan = ScreenCachePlan.build(frameCount, store::get, options.screenCacheSlots, 512 / 8);
+			}
+
+			// find the changed tiles of every scene in parallel, a few scenes ahead of packing, which then only has to
+			// allocate and emit; each pass analyses the frames again, rather than keeping the tiles of the whole clip
+			timer.start("pack");
+			ShardedTileAnalyzer analyzer = new ShardedTileAnalyzer(tileWidth, tileHeight, options.steps, tileRemap, 256);
+			metrics.gauge("analyze.dictionary_tiles", analyzer::getDistinctTileCount);
+			IntPredicate sceneStart = i -> borderChanges.containsKey(i + 1);
+			// only the pass whose output is written reports to the metrics, and only its command stream is kept
+			TilePacker firstPassPacker = createPacker(options, lookaheadAllocation ? TileAllocator.tracing(512) : new TileAllocator(512), tileRemap, screenCachePlan,
+					lookaheadAllocation ? CommandSink.discarding() : commands, lookaheadAllocation ? null : decodeSimulator, lookaheadAllocation ? null : metrics);
+			analyzer.analyze(frameCount, store::get, sceneStart, pipeline, (i, tiles) -> packFrame(firstPassPacker, borderChanges, i, store.get(i), tiles));
+			packer = firstPassPacker;
+
+			if (lookaheadAllocation) {
+				// second pass: replay the same frames, now knowing when each tile will be needed again
+				timer.start("lookahead_pack");
+				TilePacker lookaheadPacker = createPacker(options, TileAllocator.withLookahead(512, firstPassPacker.getAllocator().getTrace()), tileRemap, screenCachePlan,
+						commands, decodeSimulator, metrics);
+				analyzer.analyze(frameCount, store::get, sceneStart, pipeline, (i, tiles) -> packFrame(lookaheadPacker, borderChanges, i, store.get(i), tiles));
+				packer = lookaheadPacker;
+				System.out.println("lookahead allocation: " + firstPassPacker.getAllocator().getUploads() + " -> " + packer.getAllocator().getUploads() + " uploads, "
+						+ firstPassPacker.getCommandStreamSize() + " -> " + packer.getCommandStreamSize() + " command bytes");
+			}
+			packer.finish();
+			timer.start("write");
+			// the tiles go first, so that a commands.bin is only ever replaced along with its tiles
+			packer.writeTiles(outputDir.resolve("tiles.bin"));
+			commands.commit();
 		}
-		packer.finish();
-		try (FileOutputStream fos = new FileOutputStream("../res/tiles.bin")) {
-			packer.writeTiles(fos);
+
+		printDecodeTime(decodeSimulator);
+		writeDecodeStats(decodeSimulator, options);
+		if (packer.getHeldFrames() > 0 || packer.getReplayedFrames() > 0) {
+			System.out.println("repeated frames: " + packer.getHeldFrames() + " held, " + packer.getReplayedFrames() + " replayed from the screen cache");
+		}
+		if (options.lossyDistance > 0) {
+			System.out.println("lossy tile reuse: " + packer.getLossyMatches() + " near matches, " + packer.getGlobalTileCount() + " tiles");
 		}
-		try (FileOutputStream fos = new FileOutputStream("../res/commands.bin")) {
-			fos.write(packer.getCommandStream());
+		FrameStats stats = packer.getFrameStats();
+		System.out.println("per frame: at most " + stats.getMaxUploads() + " uploads, " + stats.getMaxCommandBytes() + " command bytes, "
+				+ stats.getMaxDeferredTiles() + " deferred tiles");
+		if (!options.stats.isEmpty()) {
+			try (FileWriter writer = new FileWriter(options.stats)) {
+				stats.writeCsv(writer);
+			}
 		}
+		timer.finish();
 	}
 }
@@ -1,8 +1,15 @@
 package pl.asie.bawsvq;
 
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+@EqualsAndHashCode
 public class OrderedDitherMatrix {
 	private final int[] data;
 	private final int span;
+	@Getter
 	private final int width, height;
 
 	public OrderedDitherMatrix(int[] data) {
@@ -20,10 +27,32 @@ public class OrderedDitherMatrix {
 		this.height = data.length / width;
 	}
 
+	/**
+	 * @return The size, span and contents of the matrix.
+	 */
+	public String getKey() {
+		return width + "x" + height + "/" + span + Arrays.toString(data);
+	}
+
 	public float getRatio(int x, int y) {
 		return (float) this.data[(x % width) + ((y % height) * width)] / this.span;
 	}
 
+	/**
+	 * @param name One of "none", "checks", "2x2", "4x4", "8x8" or "4x4_vertical".
+	 */
+	public static OrderedDitherMatrix byName(String name) {
+		return switch (name) {
+			case "none" -> MATRIX_NONE;
+			case "checks" -> MATRIX_CHECKS;
+			case "2x2" -> MATRIX_2x2;
+			case "4x4" -> MATRIX_4x4;
+			case "8x8" -> MATRIX_8x8;
+			case "4x4_vertical" -> MATRIX_4x4_VERTICAL;
+			default -> throw new IllegalArgumentException("Unknown dither matrix: " + name);
+		};
+	}
+
 	private static int deriveSpan(int[] data) {
 		int max = 0;
 		for (int datum : data) {
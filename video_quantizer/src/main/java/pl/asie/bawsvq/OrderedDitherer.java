@@ -0,0 +1,49 @@
+package pl.asie.bawsvq;
+
+import lombok.Getter;
+
+/**
+ * Ordered dithering with a threshold matrix. {@link ImageQuantizer} applies it while quantizing, without a tone plane;
+ * {@link #dither} gives the same output for tones computed separately.
+ */
+public final class OrderedDitherer implements Ditherer {
+	@Getter
+	private final OrderedDitherMatrix matrix;
+
+	public OrderedDitherer(OrderedDitherMatrix matrix) {
+		this.matrix = matrix;
+	}
+
+	@Override
+	public void dither(float[] tones, int width, int height, int steps, byte[] previous, byte[] dest) {
+		for (int iy = 0; iy < height; iy++) {
+			for (int ix = 0; ix < width; ix++) {
+				int p = iy * width + ix;
+				float steppedValue = tones[p] * (steps - 1);
+				int svMin = (int) steppedValue;
+				int svMax = svMin + (steppedValue > svMin ? 1 : 0);
+				dest[p] = (byte) ((steppedValue >= svMin + matrix.getRatio(ix, iy)) ? svMax : svMin);
+			}
+		}
+	}
+
+	@Override
+	public String getKey() {
+		return "ordered:" + matrix.getKey();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof OrderedDitherer other && matrix.equals(other.matrix);
+	}
+
+	@Override
+	public int hashCode() {
+		return matrix.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "ordered " + matrix.getWidth() + "x" + matrix.getHeight();
+	}
+}
@@ -0,0 +1,121 @@
+package pl.asie.bawsvq;
+
+/**
+ * Helpers for 8x8 tiles stored as two bitplanes, one long each.
+ * Row y occupies bits (y * 8) to (y * 8 + 7), with pixel x at bit (y * 8 + 7 - x),
+ * which matches the WonderSwan's planar tile layout byte for byte.
+ * 1bpp tiles only use the first plane; the second is always zero.
+ */
+public final class PackedTile {
+	public static final int FLIP_H = 0x1;
+	public static final int FLIP_V = 0x2;
+	public static final int INVERT = 0x4;
+	public static final int TRANSFORM_COUNT = 8;
+
+	private PackedTile() {
+
+	}
+
+	public static long invertMask(int steps, int plane) {
+		if (steps == 2) {
+			return plane == 0 ? -1L : 0L;
+		} else if (steps == 4) {
+			return -1L;
+		} else {
+			throw new IllegalArgumentException("Unsupported step count for packed tiles: " + steps);
+		}
+	}
+
+	public static void pack(byte[] data, int stride, int offset, long[] dest, int destOffset) {
+		long p0 = 0, p1 = 0;
+		for (int iy = 0; iy < 8; iy++, offset += stride) {
+			for (int ix = 0; ix < 8; ix++) {
+				int v = data[offset + ix];
+				int shift = (iy << 3) + 7 - ix;
+				p0 |= ((long) (v & 1)) << shift;
+				p1 |= ((long) ((v >> 1) & 1)) << shift;
+			}
+		}
+		dest[destOffset] = p0;
+		dest[destOffset + 1] = p1;
+	}
+
+	public static void pack(QuantizedImage image, int x, int y, long[] dest, int destOffset) {
+		pack(image.getData(), image.getWidth(), (y * image.getWidth()) + x, dest, destOffset);
+	}
+
+	public static int get(long p0, long p1, int x, int y) {
+		int shift = (y << 3) + 7 - x;
+		return (int) (((p0 >>> shift) & 1) | (((p1 >>> shift) & 1) << 1));
+	}
+
+	public static long flipHorizontal(long plane) {
+		return Long.reverseBytes(Long.reverse(plane));
+	}
+
+	public static long flipVertical(long plane) {
+		return Long.reverseBytes(plane);
+	}
+
+	/**
+	 * @return The sum of absolute differences between corresponding pixels of two tiles, from 0 to 192.
+	 * This is the L1 distance between the tiles, and so satisfies the triangle inequality.
+	 */
+	public static int distance(long a0, long a1, long b0, long b1) {
+		// per pixel, a > b if the high bit decides it, or the high bits match and the low bit decides it
+		long aGreater = (a1 & ~b1) | (~(a1 ^ b1) & a0 & ~b0);
+		long max0 = (a0 & aGreater) | (b0 & ~aGreater);
+		long max1 = (a1 & aGreater) | (b1 & ~aGreater);
+		long min0 = a0 ^ b0 ^ max0;
+		long min1 = a1 ^ b1 ^ max1;
+		return ((Long.bitCount(max1) - Long.bitCount(min1)) << 1) + Long.bitCount(max0) - Long.bitCount(min0);
+	}
+
+	public static long transform(long plane, int transform, long invertMask) {
+		if ((transform & FLIP_H) != 0) {
+			plane = flipHorizontal(plane);
+		}
+		if ((transform & FLIP_V) != 0) {
+			plane = flipVertical(plane);
+		}
+		if ((transform & INVERT) != 0) {
+			plane ^= invertMask;
+		}
+		return plane;
+	}
+
+	/**
+	 * Find the canonical form of a tile: the smallest of its transformed forms, comparing the second plane first
+	 * (as unsigned), then the first. The transforms commute and are their own inverses, so the tile is
+	 * the canonical form with the same transform applied, and applying transform a then b equals applying a ^ b.
+	 *
+	 * @param dest Receives the two planes of the canonical form.
+	 * @return The transform which maps the tile to its canonical form, and back.
+	 */
+	public static int canonicalize(long p0, long p1, long invertMask0, long invertMask1, long[] dest, int destOffset) {
+		long h0 = flipHorizontal(p0), h1 = flipHorizontal(p1);
+		long best0 = p0, best1 = p1;
+		int bestTransform = 0;
+		for (int t = 1; t < TRANSFORM_COUNT; t++) {
+			long t0 = (t & FLIP_H) != 0 ? h0 : p0;
+			long t1 = (t & FLIP_H) != 0 ? h1 : p1;
+			if ((t & FLIP_V) != 0) {
+				t0 = flipVertical(t0);
+				t1 = flipVertical(t1);
+			}
+			if ((t & INVERT) != 0) {
+				t0 ^= invertMask0;
+				t1 ^= invertMask1;
+			}
+			int cmp = Long.compareUnsigned(t1, best1);
+			if (cmp < 0 || (cmp == 0 && Long.compareUnsigned(t0, best0) < 0)) {
+				best0 = t0;
+				best1 = t1;
+				bestTransform = t;
+			}
+		}
+		dest[destOffset] = best0;
+		dest[destOffset + 1] = best1;
+		return bestTransform;
+	}
+}
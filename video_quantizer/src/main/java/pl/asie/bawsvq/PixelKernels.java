@@ -0,0 +1,103 @@
+package pl.asie.bawsvq;
+
+/**
+ * Per-pixel inner loops shared by the quantizer and packer.
+ * <p>
+ * A SIMD implementation based on the incubating Vector API is used when the JVM is started with
+ * {@code --add-modules jdk.incubator.vector} and the hardware offers at least eight float lanes; PixelKernelsTest
+ * checks that its output is identical to the scalar one. Setting the {@code bawsvq.simd} system property to
+ * {@code false} forces the scalar implementation.
+ */
+public abstract class PixelKernels {
+	private static final class Holder {
+		private static final PixelKernels INSTANCE = select();
+	}
+
+	public static PixelKernels get() {
+		return Holder.INSTANCE;
+	}
+
+	public static PixelKernels scalar() {
+		return ScalarKernels.INSTANCE;
+	}
+
+	/**
+	 * @return The SIMD implementation, or null if the Vector API or the hardware does not support it.
+	 */
+	static PixelKernels vector() {
+		try {
+			return (PixelKernels) Class.forName("pl.asie.bawsvq.VectorKernels").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	private static PixelKernels select() {
+		if (!Boolean.parseBoolean(System.getProperty("bawsvq.simd", "true"))) {
+			return scalar();
+		}
+		PixelKernels vector = vector();
+		return vector != null ? vector : scalar();
+	}
+
+	public abstract String getName();
+
+	/**
+	 * Convert packed RGB pixels to gray values, using the green channel.
+	 */
+	public abstract void gray(int[] pixels, int srcOffset, float[] dest, int destOffset, int length);
+
+	/**
+	 * Convert 8-bit samples (as the green channel of {@link #gray(int[], int, float[], int, int)}) to gray values.
+	 */
+	public abstract void gray(byte[] samples, int srcOffset, float[] dest, int destOffset, int length);
+
+	/**
+	 * Compute one row of the Laplacian plane of a workspace from three rows of its gray plane.
+	 *
+	 * @param pUp Offset of the first pixel of the row above in the gray plane.
+	 * @param p Offset of the first pixel of the row in the gray plane.
+	 * @param pDown Offset of the first pixel of the row below in the gray plane.
+	 * @param l Offset of the first pixel of the row in the Laplacian plane.
+	 */
+	abstract void laplacianRow(QuantizerWorkspace ws, int pUp, int p, int pDown, int l);
+
+	/**
+	 * Compute one row of the horizontal 3- and 5-wide windows over the gray and Laplacian planes of a workspace.
+	 *
+	 * @param p Offset of the first pixel of the row in the gray plane.
+	 * @param l Offset of the first pixel of the row in the Laplacian plane.
+	 * @param o Offset of the row in the window planes.
+	 */
+	abstract void rowWindows(QuantizerWorkspace ws, int p, int l, int o);
+
+	/**
+	 * Combine the row windows of a workspace for one image row and quantize it.
+	 *
+	 * @param o Offset of the row in the window planes.
+	 * @param p Offset of the first pixel of the row in the gray plane.
+	 * @param ratios Dither ratios for this row, or null if not dithering.
+	 */
+	abstract void quantizeRow(QuantizerWorkspace ws, int o, int p, float[] ratios, int steps, byte[] data, int dataOffset);
+
+	/**
+	 * Combine the row windows of a workspace for one image row into edge-enhanced tones from 0 to 1,
+	 * as {@link #quantizeRow} does before quantizing them, for a {@link Ditherer}.
+	 *
+	 * @param o Offset of the row in the window planes.
+	 * @param p Offset of the first pixel of the row in the gray plane.
+	 */
+	abstract void toneRow(QuantizerWorkspace ws, int o, int p, float[] tones, int tonesOffset);
+
+	public abstract void invert(byte[] src, byte[] dest, int steps);
+
+	/**
+	 * OR the difference of one row of pixels of two frames into a per-tile accumulator, eight pixels (one tile row) at a time.
+	 */
+	public abstract void diffRow(byte[] a, byte[] b, int offset, long[] accum, int tileWidth);
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
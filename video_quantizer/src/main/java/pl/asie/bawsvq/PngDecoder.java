@@ -0,0 +1,196 @@
+package pl.asie.bawsvq;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the green channel (or gray level) of non-interlaced PNG images straight to an 8-bit plane,
+ * without going through a {@link java.awt.image.BufferedImage}. Chunk CRCs are not checked.
+ * Interlaced images are not supported, and should be read some other way.
+ */
+final class PngDecoder {
+	private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+	private static final int IHDR = 0x49484452, PLTE = 0x504C5445, IDAT = 0x49444154, IEND = 0x49454E44;
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+	private final byte[] data;
+	private final int length;
+	final int width, height;
+	private final int bitDepth, colorType;
+	private final boolean interlaced;
+
+	PngDecoder(byte[] data, int length) throws IOException {
+		this.data = data;
+		this.length = length;
+		if (length < 33 || readLong(0) != SIGNATURE || readInt(8) != 13 || readInt(12) != IHDR) {
+			throw new IOException("Not a PNG image");
+		}
+		this.width = readInt(16);
+		this.height = readInt(20);
+		this.bitDepth = data[24] & 0xFF;
+		this.colorType = data[25] & 0xFF;
+		this.interlaced = data[28] != 0;
+		if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+			throw new IOException("Invalid PNG size: " + width + "x" + height);
+		}
+	}
+
+	private int readInt(int offset) {
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
+	private long readLong(int offset) {
+		return ((long) readInt(offset) << 32) | (readInt(offset + 4) & 0xFFFFFFFFL);
+	}
+
+	private int getChannels() {
+		return switch (colorType) {
+			case 0, 3 -> 1;
+			case 4 -> 2;
+			case 2 -> 3;
+			case 6 -> 4;
+			default -> 0;
+		};
+	}
+
+	boolean isSupported() {
+		if (interlaced) {
+			return false;
+		}
+		return switch (colorType) {
+			case 0 -> bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+			case 3 -> bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+			case 2, 4, 6 -> bitDepth == 8 || bitDepth == 16;
+			default -> false;
+		};
+	}
+
+	/**
+	 * @param dest At least width * height bytes.
+	 */
+	void decodeGreen(byte[] dest) throws IOException {
+		if (!isSupported()) {
+			throw new IOException("Unsupported PNG format: color type " + colorType + ", bit depth " + bitDepth + (interlaced ? ", interlaced" : ""));
+		}
+		int bitsPerPixel = getChannels() * bitDepth;
+		int rowBytes = (int) (((long) width * bitsPerPixel + 7) / 8);
+		int bpp = Math.max(1, bitsPerPixel / 8);
+		byte[] palette = null;
+		byte[] prev = new byte[rowBytes + 1];
+		byte[] curr = new byte[rowBytes + 1];
+		int row = 0, filled = 0;
+
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		try {
+			int offset = 8;
+			while (offset + 8 <= length && row < height) {
+				int chunkLength = readInt(offset);
+				int chunkType = readInt(offset + 4);
+				int chunkData = offset + 8;
+				if (chunkLength < 0 || chunkData + chunkLength > length) {
+					throw new IOException("Truncated PNG chunk");
+				}
+				if (chunkType == PLTE) {
+					palette = new byte[256];
+					for (int i = 0; i < Math.min(256, chunkLength / 3); i++) {
+						palette[i] = data[chunkData + i * 3 + 1];
+					}
+				} else if (chunkType == IDAT) {
+					inflater.setInput(data, chunkData, chunkLength);
+					while (row < height) {
+						int n = inflater.inflate(curr, filled, rowBytes + 1 - filled);
+						filled += n;
+						if (filled == rowBytes + 1) {
+							unfilter(curr, prev, rowBytes, bpp);
+							extractGreen(curr, palette, dest, row * width);
+							byte[] t = prev;
+							prev = curr;
+							curr = t;
+							filled = 0;
+							row++;
+						} else if (n == 0) {
+							if (inflater.needsInput()) {
+								break;
+							}
+							throw new IOException("Corrupt PNG image data");
+						}
+					}
+				} else if (chunkType == IEND) {
+					break;
+				}
+				offset = chunkData + chunkLength + 4;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt PNG image data", e);
+		}
+		if (row < height) {
+			throw new IOException("Truncated PNG image data: " + row + " of " + height + " rows");
+		}
+	}
+
+	private static void unfilter(byte[] curr, byte[] prev, int rowBytes, int bpp) throws IOException {
+		switch (curr[0]) {
+			case 0 -> { }
+			case 1 -> {
+				for (int i = 1 + bpp; i <= rowBytes; i++) {
+					curr[i] += curr[i - bpp];
+				}
+			}
+			case 2 -> {
+				for (int i = 1; i <= rowBytes; i++) {
+					curr[i] += prev[i];
+				}
+			}
+			case 3 -> {
+				for (int i = 1; i <= rowBytes; i++) {
+					int a = i > bpp ? curr[i - bpp] & 0xFF : 0;
+					curr[i] += (byte) ((a + (prev[i] & 0xFF)) >> 1);
+				}
+			}
+			case 4 -> {
+				for (int i = 1; i <= rowBytes; i++) {
+					int a = i > bpp ? curr[i - bpp] & 0xFF : 0;
+					int b = prev[i] & 0xFF;
+					int c = i > bpp ? prev[i - bpp] & 0xFF : 0;
+					int p = a + b - c;
+					int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+					curr[i] += (byte) ((pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c));
+				}
+			}
+			default -> throw new IOException("Invalid PNG filter type: " + curr[0]);
+		}
+	}
+
+	private void extractGreen(byte[] curr, byte[] palette, byte[] dest, int destOffset) throws IOException {
+		if (bitDepth < 8) {
+			int mask = (1 << bitDepth) - 1;
+			if (colorType == 3 && palette == null) {
+				throw new IOException("PNG palette missing");
+			}
+			for (int x = 0; x < width; x++) {
+				int bit = x * bitDepth;
+				int v = (curr[1 + (bit >> 3)] >> (8 - bitDepth - (bit & 7))) & mask;
+				dest[destOffset + x] = colorType == 3 ? palette[v] : (byte) (v * 255 / mask);
+			}
+			return;
+		}
+		// the first (high) byte of each sample, for 16-bit images
+		int sampleBytes = bitDepth / 8;
+		int stride = getChannels() * sampleBytes;
+		int channel = (colorType == 2 || colorType == 6) ? sampleBytes : 0;
+		if (colorType == 3) {
+			if (palette == null) {
+				throw new IOException("PNG palette missing");
+			}
+			for (int x = 0; x < width; x++) {
+				dest[destOffset + x] = palette[curr[1 + x] & 0xFF];
+			}
+		} else {
+			for (int x = 0, i = 1 + channel; x < width; x++, i += stride) {
+				dest[destOffset + x] = curr[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package pl.asie.bawsvq;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Frames stored as one image file each. PNG images are decoded by {@link PngDecoder}; anything it does not
+ * support (including other formats) is read through ImageIO instead.
+ */
+final class PngFrameInput extends FrameInput {
+	private final List<Path> frames;
+	private final ThreadLocal<byte[]> fileBuffer = ThreadLocal.withInitial(() -> new byte[1 << 16]);
+
+	PngFrameInput(List<Path> frames, int width, int height) {
+		super(width, height);
+		this.frames = List.copyOf(frames);
+	}
+
+	@Override
+	public int getFrameCount() {
+		return frames.size();
+	}
+
+	private int readFile(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE - 8) {
+				throw new IOException("File too large: " + path);
+			}
+			byte[] buffer = fileBuffer.get();
+			if (buffer.length < size) {
+				buffer = new byte[Integer.highestOneBit((int) size) << 1];
+				fileBuffer.set(buffer);
+			}
+			ByteBuffer bb = ByteBuffer.wrap(buffer, 0, (int) size);
+			while (bb.hasRemaining() && channel.read(bb) >= 0) {
+				// keep reading
+			}
+			return bb.position();
+		}
+	}
+
+	@Override
+	public boolean read(int index, byte[] dest) throws IOException {
+		if (index >= frames.size()) {
+			return false;
+		}
+		if (dest == null) {
+			return true;
+		}
+
+		Path path = frames.get(index);
+		int length = readFile(path);
+		PngDecoder decoder = null;
+		try {
+			decoder = new PngDecoder(fileBuffer.get(), length);
+		} catch (IOException e) {
+			// not a PNG image
+		}
+
+		byte[] samples;
+		int srcWidth, srcHeight;
+		if (decoder != null && decoder.isSupported()) {
+			srcWidth = decoder.width;
+			srcHeight = decoder.height;
+			samples = acquireSourceBuffer(srcWidth * srcHeight);
+			decoder.decodeGreen(samples);
+		} else {
+			BufferedImage image = ImageIO.read(path.toFile());
+			if (image == null) {
+				throw new IOException("Could not read " + path);
+			}
+			srcWidth = image.getWidth();
+			srcHeight = image.getHeight();
+			samples = acquireSourceBuffer(srcWidth * srcHeight);
+			int[] row = new int[srcWidth];
+			for (int iy = 0; iy < srcHeight; iy++) {
+				image.getRGB(0, iy, srcWidth, 1, row, 0, srcWidth);
+				for (int ix = 0; ix < srcWidth; ix++) {
+					samples[iy * srcWidth + ix] = (byte) (row[ix] >> 8);
+				}
+			}
+		}
+		getResampler(srcWidth, srcHeight).resample(samples, dest);
+		releaseSourceBuffer(samples);
+		return true;
+	}
+}
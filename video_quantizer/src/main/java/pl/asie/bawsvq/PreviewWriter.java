@@ -0,0 +1,125 @@
+package pl.asie.bawsvq;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Writes PNG previews of quantized frames, with the border colour on either side, on a pool of worker threads.
+ * Each worker draws into a canvas and encodes it with a PNG writer taken from a shared pool, so neither is
+ * allocated per frame. At most {@code window} previews are pending at any given time.
+ */
+public class PreviewWriter implements Closeable {
+	private static final int BORDER_WIDTH = 16;
+	private static final int BORDER_BLACK = 0x000000;
+	private static final int BORDER_WHITE = 0xC0C0C0;
+
+	private static final class Canvas {
+		private final BufferedImage image;
+		private final int[] pixels;
+		private final ImageWriter writer;
+
+		private Canvas(int width, int height) {
+			this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			this.writer = ImageIO.getImageWritersByFormatName("png").next();
+		}
+	}
+
+	private final Path dir;
+	private final ExecutorService executor;
+	private final int window;
+	private final Queue<Canvas> canvases = new ConcurrentLinkedQueue<>();
+	private final Deque<Future<Void>> pending = new ArrayDeque<>();
+
+	public PreviewWriter(Path dir, ExecutorService executor, int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("window must be positive");
+		}
+		this.dir = dir;
+		this.executor = executor;
+		this.window = window;
+	}
+
+	/**
+	 * Queue a preview of a frame, as dir/NNNNN.png. The image must not change until the preview is written.
+	 */
+	public void write(QuantizedImage img, int index, boolean borderIsBlack) throws IOException {
+		while (pending.size() >= window) {
+			FramePipeline.await(pending.removeFirst());
+		}
+		pending.addLast(executor.submit(() -> {
+			writeNow(img, dir.resolve(String.format("%05d.png", index)), borderIsBlack);
+			return null;
+		}));
+	}
+
+	private void writeNow(QuantizedImage img, Path path, boolean borderIsBlack) throws IOException {
+		int width = img.getWidth() + BORDER_WIDTH * 2;
+		Canvas canvas = canvases.poll();
+		if (canvas == null || canvas.image.getWidth() != width || canvas.image.getHeight() != img.getHeight()) {
+			canvas = new Canvas(width, img.getHeight());
+		}
+		try {
+			int border = borderIsBlack ? BORDER_BLACK : BORDER_WHITE;
+			int[] lut = new int[img.getSteps()];
+			for (int v = 0; v < lut.length; v++) {
+				lut[v] = 0x10101 * (v * 255 / img.getSteps());
+			}
+			byte[] data = img.getData();
+			int i = 0, o = 0;
+			for (int iy = 0; iy < img.getHeight(); iy++) {
+				for (int ix = 0; ix < BORDER_WIDTH; ix++) {
+					canvas.pixels[o++] = border;
+				}
+				for (int ix = 0; ix < img.getWidth(); ix++) {
+					canvas.pixels[o++] = lut[data[i++]];
+				}
+				for (int ix = 0; ix < BORDER_WIDTH; ix++) {
+					canvas.pixels[o++] = border;
+				}
+			}
+			try (ImageOutputStream out = new FileImageOutputStream(path.toFile())) {
+				canvas.writer.setOutput(out);
+				canvas.writer.write(canvas.image);
+			} finally {
+				canvas.writer.reset();
+			}
+		} finally {
+			canvases.add(canvas);
+		}
+	}
+
+	/**
+	 * Wait for all pending previews to be written.
+	 */
+	public void flush() throws IOException {
+		try {
+			while (!pending.isEmpty()) {
+				FramePipeline.await(pending.removeFirst());
+			}
+		} finally {
+			for (Future<Void> future : pending) {
+				future.cancel(true);
+			}
+			pending.clear();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+}
@@ -6,14 +6,10 @@ import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
 import java.awt.image.BufferedImage;
-import java.io.Serial;
-import java.io.Serializable;
 
 @EqualsAndHashCode
 @RequiredArgsConstructor(access = AccessLevel.PACKAGE)
-public class QuantizedImage implements Serializable {
-	@Serial
-	private static final long serialVersionUID = -7371552472243480321L;
+public class QuantizedImage {
 	@Getter
 	private final int width, height, steps;
 	@Getter
@@ -45,11 +41,7 @@ public class QuantizedImage implements Serializable {
 
 	public QuantizedImage invert() {
 		byte[] newData = new byte[this.width * this.height];
-		for (int iy = 0; iy < this.height; iy++) {
-			for (int ix = 0; ix < this.width; ix++) {
-				newData[(iy * this.width) + ix] = (byte) (steps - 1 - data[(iy * this.width) + ix]);
-			}
-		}
+		PixelKernels.get().invert(data, newData, steps);
 		return new QuantizedImage(this.width, this.height, this.steps, newData);
 	}
 
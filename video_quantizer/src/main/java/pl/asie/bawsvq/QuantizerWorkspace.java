@@ -0,0 +1,50 @@
+package pl.asie.bawsvq;
+
+/**
+ * Per-thread scratch planes for quantizing one band of rows.
+ * The gray plane holds the band plus three halo rows above and below, the Laplacian
+ * and row window planes hold the band plus two. Rows outside the image replicate the edge rows,
+ * and the gray and Laplacian planes are also padded by two replicated pixels on the left and right.
+ */
+final class QuantizerWorkspace {
+	static final int PAD = 2;
+	static final int HALO = PAD + 1;
+
+	final int width, pw;
+	final float[] gray, laplacian;
+	final float[] rowMax3, rowMax5, rowMin3, rowMin5, rowSum3, rowSum5, lapMax3, lapMax5;
+	/**
+	 * Dither ratios, one row of the matrix per entry, expanded to the width of the image; null if not dithering.
+	 */
+	final float[][] ratioRows;
+
+	QuantizerWorkspace(int width, int height, OrderedDitherMatrix matrix) {
+		this.width = width;
+		this.pw = width + PAD * 2;
+		this.gray = new float[pw * (height + HALO * 2)];
+		this.laplacian = new float[pw * (height + PAD * 2)];
+		int rowSize = width * (height + PAD * 2);
+		this.rowMax3 = new float[rowSize];
+		this.rowMax5 = new float[rowSize];
+		this.rowMin3 = new float[rowSize];
+		this.rowMin5 = new float[rowSize];
+		this.rowSum3 = new float[rowSize];
+		this.rowSum5 = new float[rowSize];
+		this.lapMax3 = new float[rowSize];
+		this.lapMax5 = new float[rowSize];
+		if (matrix != null) {
+			this.ratioRows = new float[matrix.getHeight()][width];
+			for (int iy = 0; iy < matrix.getHeight(); iy++) {
+				for (int ix = 0; ix < width; ix++) {
+					this.ratioRows[iy][ix] = matrix.getRatio(ix, iy);
+				}
+			}
+		} else {
+			this.ratioRows = null;
+		}
+	}
+
+	float[] getRatioRow(int y) {
+		return ratioRows != null ? ratioRows[y % ratioRows.length] : null;
+	}
+}
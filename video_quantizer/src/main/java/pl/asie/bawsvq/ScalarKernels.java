@@ -0,0 +1,167 @@
+package pl.asie.bawsvq;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+final class ScalarKernels extends PixelKernels {
+	static final ScalarKernels INSTANCE = new ScalarKernels();
+	private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final float[] GRAY_LUT = new float[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			GRAY_LUT[i] = asGray(i);
+		}
+	}
+
+	static float asGray(int green) {
+		// float v = green / 256.0f;
+		float v = (green & 0xFC) / 252.0f;
+		if (v < 0.1f) {
+			return 0.0f;
+		} else if (v > 0.9f) {
+			return 1.0f;
+		} else {
+			return (v - 0.1f) * (1f/0.8f);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "scalar";
+	}
+
+	@Override
+	public void gray(int[] pixels, int srcOffset, float[] dest, int destOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			dest[destOffset + i] = GRAY_LUT[(pixels[srcOffset + i] >> 8) & 0xFF];
+		}
+	}
+
+	@Override
+	public void gray(byte[] samples, int srcOffset, float[] dest, int destOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			dest[destOffset + i] = GRAY_LUT[samples[srcOffset + i] & 0xFF];
+		}
+	}
+
+	@Override
+	void laplacianRow(QuantizerWorkspace ws, int pUp, int p, int pDown, int l) {
+		laplacianRange(ws, pUp, p, pDown, l, 0, ws.width);
+	}
+
+	static void laplacianRange(QuantizerWorkspace ws, int pUp, int p, int pDown, int l, int from, int to) {
+		float[] g = ws.gray;
+		float[] lap = ws.laplacian;
+		for (int ix = from; ix < to; ix++) {
+			lap[l + ix] = g[pUp + ix]
+					+ g[pDown + ix]
+					+ g[p + ix - 1]
+					+ g[p + ix + 1]
+					- (g[p + ix] * 4);
+		}
+	}
+
+	@Override
+	void rowWindows(QuantizerWorkspace ws, int p, int l, int o) {
+		rowWindowsRange(ws, p, l, o, 0, ws.width);
+	}
+
+	static void rowWindowsRange(QuantizerWorkspace ws, int p, int l, int o, int from, int to) {
+		float[] g = ws.gray;
+		float[] lap = ws.laplacian;
+		for (int ix = from; ix < to; ix++) {
+			int pi = p + ix, li = l + ix, oi = o + ix;
+			float a = g[pi - 2], b = g[pi - 1], c = g[pi], d = g[pi + 1], e = g[pi + 2];
+			float max3 = Math.max(b, Math.max(c, d));
+			float min3 = Math.min(b, Math.min(c, d));
+			float sum3 = b + c + d;
+			ws.rowMax3[oi] = max3;
+			ws.rowMax5[oi] = Math.max(max3, Math.max(a, e));
+			ws.rowMin3[oi] = min3;
+			ws.rowMin5[oi] = Math.min(min3, Math.min(a, e));
+			ws.rowSum3[oi] = sum3;
+			ws.rowSum5[oi] = sum3 + a + e;
+
+			float lmax3 = Math.max(lap[li - 1], Math.max(lap[li], lap[li + 1]));
+			ws.lapMax3[oi] = lmax3;
+			ws.lapMax5[oi] = Math.max(lmax3, Math.max(lap[li - 2], lap[li + 2]));
+		}
+	}
+
+	@Override
+	void quantizeRow(QuantizerWorkspace ws, int o, int p, float[] ratios, int steps, byte[] data, int dataOffset) {
+		quantizeRange(ws, o, p, ratios, steps, data, dataOffset, 0, ws.width);
+	}
+
+	@Override
+	void toneRow(QuantizerWorkspace ws, int o, int p, float[] tones, int tonesOffset) {
+		toneRange(ws, o, p, tones, tonesOffset, 0, ws.width);
+	}
+
+	static void toneRange(QuantizerWorkspace ws, int o, int p, float[] tones, int tonesOffset, int from, int to) {
+		for (int ix = from; ix < to; ix++) {
+			tones[tonesOffset + ix] = enhance(ws, o + ix, ws.gray[p + ix]);
+		}
+	}
+
+	private static float enhance(QuantizerWorkspace ws, int c, float grayValue) {
+		int w = ws.width;
+		int w2 = w * 2;
+		float pMaxValue = Math.max(
+				Math.max(ws.rowMax5[c - w], Math.max(ws.rowMax5[c], ws.rowMax5[c + w])),
+				Math.max(ws.rowMax3[c - w2], ws.rowMax3[c + w2])
+		);
+		float pMinValue = Math.min(
+				Math.min(ws.rowMin5[c - w], Math.min(ws.rowMin5[c], ws.rowMin5[c + w])),
+				Math.min(ws.rowMin3[c - w2], ws.rowMin3[c + w2])
+		);
+		float sum5x3 = ws.rowSum5[c - w] + ws.rowSum5[c] + ws.rowSum5[c + w];
+		float pAvgValue = (sum5x3 + ws.rowSum3[c - w2] + ws.rowSum3[c + w2]) / 21.0f;
+		float maxValue = Math.max(
+				Math.max(ws.lapMax5[c - w], Math.max(ws.lapMax5[c], ws.lapMax5[c + w])),
+				Math.max(ws.lapMax3[c - w2], ws.lapMax3[c + w2])
+		);
+
+		if (maxValue >= 0.5f) {
+			grayValue = (grayValue >= pAvgValue) ? pMaxValue : pMinValue;
+		}
+		return grayValue;
+	}
+
+	static void quantizeRange(QuantizerWorkspace ws, int o, int p, float[] ratios, int steps, byte[] data, int dataOffset, int from, int to) {
+		for (int ix = from; ix < to; ix++) {
+			float grayValue = enhance(ws, o + ix, ws.gray[p + ix]);
+
+			if (ratios != null) {
+				float steppedValue = grayValue * (steps - 1);
+				int svMin = (int) steppedValue;
+				int svMax = svMin + (steppedValue > svMin ? 1 : 0);
+				float matrixPoint = svMin + ratios[ix];
+				data[dataOffset + ix] = (byte) ((steppedValue >= matrixPoint) ? svMax : svMin);
+			} else {
+				float steppedValue = grayValue * steps;
+				data[dataOffset + ix] = (byte) steppedValue;
+			}
+		}
+	}
+
+	@Override
+	public void invert(byte[] src, byte[] dest, int steps) {
+		for (int i = 0; i < src.length; i++) {
+			dest[i] = (byte) (steps - 1 - src[i]);
+		}
+	}
+
+	@Override
+	public void diffRow(byte[] a, byte[] b, int offset, long[] accum, int tileWidth) {
+		diffRange(a, b, offset, accum, 0, tileWidth);
+	}
+
+	static void diffRange(byte[] a, byte[] b, int offset, long[] accum, int from, int to) {
+		for (int tx = from, i = offset + from * 8; tx < to; tx++, i += 8) {
+			accum[tx] |= (long) LONG_VIEW.get(a, i) ^ (long) LONG_VIEW.get(b, i);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package pl.asie.bawsvq;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Plans the use of the decoder's screen map cache (see {@link TilePacker#COMMAND_VERSION_REPLAY}): which frames
+ * to save to which slot, so that a later frame with the same content can restore the whole screen map at once,
+ * instead of placing every changed tile again.
+ * <p>
+ * Frames are indexed by a 64-bit fingerprint of their content, confirmed by comparing the frames themselves.
+ * A frame repeating the one right before it needs no plan, as the packer merges it into the previous frame's hold.
+ * Of a run of frames repeating an earlier run, only the first is replayed: the rest then change the screen just
+ * as the earlier run did. A saved screen map keeps its tiles resident until it is no longer needed, so only frames
+ * showing few distinct tiles are saved. Slots are assigned earliest replay first, which replays as many frames as possible.
+ */
+public final class ScreenCachePlan {
+	private static final int NONE = -1;
+	private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	@Getter
+	private final int slotCount;
+	private final int[] saveSlot, replaySlot, freeSlot;
+	@Getter
+	private final int replayCount;
+
+	private ScreenCachePlan(int slotCount, int[] saveSlot, int[] replaySlot, int[] freeSlot, int replayCount) {
+		this.slotCount = slotCount;
+		this.saveSlot = saveSlot;
+		this.replaySlot = replaySlot;
+		this.freeSlot = freeSlot;
+		this.replayCount = replayCount;
+	}
+
+	/**
+	 * @return The slot to save the screen map to once the frame is drawn, or -1.
+	 */
+	public int getSaveSlot(int frame) {
+		return frame < saveSlot.length ? saveSlot[frame] : NONE;
+	}
+
+	/**
+	 * @return The slot to restore the screen map from before drawing the frame, or -1.
+	 */
+	public int getReplaySlot(int frame) {
+		return frame < replaySlot.length ? replaySlot[frame] : NONE;
+	}
+
+	/**
+	 * @return The slot which is no longer needed once the frame is drawn, or -1.
+	 */
+	public int getFreeSlot(int frame) {
+		return frame < freeSlot.length ? freeSlot[frame] : NONE;
+	}
+
+	static long fingerprint(QuantizedImage image) {
+		byte[] data = image.getData();
+		long h = data.length;
+		int i = 0;
+		for (; i + 8 <= data.length; i += 8) {
+			h = Long.rotateLeft(h ^ HashCommon.mix((long) LONG_VIEW.get(data, i)), 27) * 0x9E3779B97F4A7C15L;
+		}
+		for (; i < data.length; i++) {
+			h = (h ^ data[i]) * 0x100000001B3L;
+		}
+		return HashCommon.mix(h);
+	}
+
+	private static int countDistinctTiles(QuantizedImage image) {
+		int steps = image.getSteps();
+		long invertMask0 = PackedTile.invertMask(steps, 0), invertMask1 = PackedTile.invertMask(steps, 1);
+		long[] tile = new long[2];
+		long[] canonical = new long[2];
+		PackedTile.canonicalize(0, 0, invertMask0, invertMask1, canonical, 0);
+		long blank0 = canonical[0], blank1 = canonical[1];
+		TileMap seen = new TileMap(256);
+		for (int y = 0; y + 8 <= image.getHeight(); y += 8) {
+			for (int x = 0; x + 8 <= image.getWidth(); x += 8) {
+				PackedTile.pack(image, x, y, tile, 0);
+				PackedTile.canonicalize(tile[0], tile[1], invertMask0, invertMask1, canonical, 0);
+				if (canonical[0] != blank0 || canonical[1] != blank1) {
+					seen.putIfAbsent(canonical[0], canonical[1], 0);
+				}
+			}
+		}
+		return seen.size();
+	}
+
+	/**
+	 * @param slotCount The number of screen maps the decoder can cache.
+	 * @param maxTiles The most distinct tiles (other than the blank tile) a saved frame may show, and so keep resident.
+	 */
+	public static ScreenCachePlan build(int frameCount, FramePipeline.FrameSource<QuantizedImage> source, int slotCount, int maxTiles) throws IOException {
+		long[] fingerprints = new long[frameCount];
+		// the most recent earlier frame with the same content
+		int[] repeatOf = new int[frameCount];
+		Long2IntMap lastSeen = new Long2IntOpenHashMap();
+		lastSeen.defaultReturnValue(NONE);
+		for (int i = 0; i < frameCount; i++) {
+			QuantizedImage image = source.load(i);
+			fingerprints[i] = fingerprint(image);
+			int k = lastSeen.put(fingerprints[i], i);
+			repeatOf[i] = k != NONE && Arrays.equals(source.load(k).getData(), image.getData()) ? k : NONE;
+		}
+
+		int[] saveSlot = new int[frameCount];
+		int[] replaySlot = new int[frameCount];
+		int[] freeSlot = new int[frameCount];
+		Arrays.fill(saveSlot, NONE);
+		Arrays.fill(replaySlot, NONE);
+		Arrays.fill(freeSlot, NONE);
+		int[] busyUntil = new int[slotCount];
+		long[] slotContent = new long[slotCount];
+		Arrays.fill(busyUntil, NONE);
+		int replayCount = 0;
+
+		for (int i = 0; i < frameCount; i++) {
+			int k = repeatOf[i];
+			if (k == NONE || k == i - 1) {
+				continue;
+			}
+			if (k > 0 && fingerprints[i - 1] == fingerprints[k - 1]) {
+				// continues a repeated run
+				continue;
+			}
+			// the free slot which has been busy the longest, so as to leave the others for shorter gaps
+			int slot = NONE;
+			for (int s = 0; s < slotCount; s++) {
+				if (busyUntil[s] <= k && (slot == NONE || busyUntil[s] > busyUntil[slot])) {
+					slot = s;
+				}
+			}
+			if (slot == NONE) {
+				continue;
+			}
+			boolean chained = busyUntil[slot] == k && slotContent[slot] == fingerprints[k];
+			if (!chained) {
+				if (countDistinctTiles(source.load(k)) > maxTiles) {
+					continue;
+				}
+				saveSlot[k] = slot;
+			} else {
+				// the slot already holds this screen, and is kept instead of being freed after frame k
+				freeSlot[k] = NONE;
+			}
+			replaySlot[i] = slot;
+			freeSlot[i] = slot;
+			busyUntil[slot] = i;
+			slotContent[slot] = fingerprints[i];
+			replayCount++;
+		}
+		return new ScreenCachePlan(slotCount, saveSlot, replaySlot, freeSlot, replayCount);
+	}
+}
@@ -0,0 +1,107 @@
+package pl.asie.bawsvq;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+
+import java.io.IOException;
+import java.util.function.IntPredicate;
+
+/**
+ * Finds the tiles each frame of a clip changes, ahead of {@link TilePacker#addImage(QuantizedImage, FrameTiles)}.
+ * <p>
+ * The clip is cut into shards at scene boundaries (and every {@code maxShardFrames} frames within long scenes),
+ * which are analysed in parallel: each frame is diffed against the previous one, and every changed tile is packed,
+ * remapped, canonicalized and interned into a shared {@link ConcurrentTileDictionary}. This is most of the
+ * per-tile work of packing. Slot allocation and the command stream depend on everything encoded before them,
+ * so they stay with the packer, which consumes the results in frame order as shards complete; it gives out global
+ * ids by first use, and so its output does not depend on the dictionary's ids, or on the number of threads.
+ */
+public class ShardedTileAnalyzer {
+	private static final int MAX_TILE_ID = (1 << 24) - 1;
+
+	private final int tileWidth, tileHeight, steps;
+	private final long invertMask0, invertMask1;
+	private final TileRemap tileRemap;
+	private final int maxShardFrames;
+	private final ConcurrentTileDictionary dictionary = new ConcurrentTileDictionary();
+
+	/**
+	 * @param tileRemap The tile set the packer will use, if any (see {@link TilePacker#setTileRemap(TileRemap)}).
+	 */
+	public ShardedTileAnalyzer(int tileWidth, int tileHeight, int steps, TileRemap tileRemap, int maxShardFrames) {
+		if (maxShardFrames <= 0) {
+			throw new IllegalArgumentException("Invalid shard length: " + maxShardFrames);
+		}
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.steps = steps;
+		this.invertMask0 = PackedTile.invertMask(steps, 0);
+		this.invertMask1 = PackedTile.invertMask(steps, 1);
+		this.tileRemap = tileRemap;
+		this.maxShardFrames = maxShardFrames;
+	}
+
+	public int getDistinctTileCount() {
+		return dictionary.size();
+	}
+
+	/**
+	 * Analyse a clip and hand each frame's tiles to the consumer, in frame order. Shards are analysed on the pipeline's
+	 * pool, at most one per worker ahead of the consumer, so only the tiles of those shards are held in memory.
+	 *
+	 * @param sceneStart Whether a new scene starts at the given frame.
+	 */
+	public void analyze(int frameCount, FramePipeline.FrameSource<QuantizedImage> source, IntPredicate sceneStart, FramePipeline pipeline,
+						FramePipeline.FrameConsumer<FrameTiles> consumer) throws IOException {
+		IntList shardStarts = new IntArrayList();
+		shardStarts.add(0);
+		for (int i = 1; i <= frameCount; i++) {
+			if (i == frameCount || sceneStart.test(i) || (i - shardStarts.getInt(shardStarts.size() - 1)) >= maxShardFrames) {
+				shardStarts.add(i);
+			}
+		}
+
+		pipeline.run(shardStarts.size() - 1, pipeline.getPool().getParallelism(),
+				shard -> analyzeShard(shardStarts.getInt(shard), shardStarts.getInt(shard + 1), source),
+				(shard, tiles) -> {
+					for (int i = 0; i < tiles.length; i++) {
+						consumer.accept(shardStarts.getInt(shard) + i, tiles[i]);
+					}
+				});
+	}
+
+	private FrameTiles[] analyzeShard(int from, int to, FramePipeline.FrameSource<QuantizedImage> source) throws IOException {
+		FrameTiles[] result = new FrameTiles[to - from];
+		long[] dirtyTiles = FrameDiff.createBitmap(tileWidth * tileHeight);
+		long[] diffScratch = new long[tileWidth];
+		long[] canonical = new long[2];
+		QuantizedImage prev = from > 0 ? source.load(from - 1)
+				: new QuantizedImage(tileWidth * 8, tileHeight * 8, steps, new byte[tileWidth * tileHeight * 64]);
+
+		for (int i = from; i < to; i++) {
+			QuantizedImage img = source.load(i);
+			FrameTiles tiles = new FrameTiles(FrameDiff.compute(prev, img, tileWidth, tileHeight, diffScratch, dirtyTiles));
+			int j = 0;
+			for (int tpos = 0; tpos < tileWidth * tileHeight; tpos++) {
+				if (FrameDiff.isDirty(dirtyTiles, tpos)) {
+					PackedTile.pack(img, (tpos % tileWidth) * 8, (tpos / tileWidth) * 8, tiles.tiles, j * 2);
+					if (tileRemap != null) {
+						tileRemap.apply(tiles.tiles, j * 2);
+					}
+					int transform = PackedTile.canonicalize(tiles.tiles[j * 2], tiles.tiles[j * 2 + 1], invertMask0, invertMask1, canonical, 0);
+					int id = dictionary.intern(canonical[0], canonical[1]);
+					if (id > MAX_TILE_ID) {
+						// the transform takes the top byte of the key
+						throw new IllegalStateException("Too many distinct tiles: more than " + (MAX_TILE_ID + 1));
+					}
+					tiles.positions[j] = tpos;
+					tiles.keys[j] = id | (transform << 24);
+					j++;
+				}
+			}
+			result[i - from] = tiles;
+			prev = img;
+		}
+		return result;
+	}
+}
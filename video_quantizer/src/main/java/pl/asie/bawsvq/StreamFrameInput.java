@@ -0,0 +1,174 @@
+package pl.asie.bawsvq;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Frames read one after another from a stream: either YUV4MPEG2 (of which only the luma plane is used)
+ * or raw 8-bit gray frames of a given size, as written by {@code ffmpeg -f yuv4mpegpipe} or
+ * {@code ffmpeg -f rawvideo -pix_fmt gray} respectively.
+ * <p>
+ * The stream is read under a lock, in order; frames read ahead of a request for a later one are held
+ * until they are requested in turn. Resampling happens outside of the lock.
+ */
+final class StreamFrameInput extends FrameInput {
+	private static final byte[] Y4M_MAGIC = "YUV4MPEG2".getBytes(StandardCharsets.US_ASCII);
+	private final InputStream in;
+	private final int maxFrames;
+	private final int srcWidth, srcHeight;
+	private final boolean y4m;
+	private final long chromaSize;
+	// limited range luma to full range, or null if the stream is full range
+	private final byte[] rangeLut;
+	private final Int2ObjectMap<byte[]> readAhead = new Int2ObjectOpenHashMap<>();
+	private int nextIndex;
+	private boolean ended;
+
+	/**
+	 * @param rawWidth The width of raw frames; 0 if the stream must be YUV4MPEG2.
+	 */
+	StreamFrameInput(InputStream in, int width, int height, int maxFrames, int rawWidth, int rawHeight) throws IOException {
+		super(width, height);
+		this.in = in;
+		this.maxFrames = maxFrames;
+
+		in.mark(Y4M_MAGIC.length);
+		byte[] magic = in.readNBytes(Y4M_MAGIC.length);
+		if (Arrays.equals(magic, Y4M_MAGIC)) {
+			int w = 0, h = 0;
+			String colorSpace = "420";
+			boolean fullRange = false;
+			for (String param : readLine().trim().split(" ")) {
+				if (param.isEmpty()) {
+					continue;
+				}
+				String value = param.substring(1);
+				switch (param.charAt(0)) {
+					case 'W' -> w = Integer.parseInt(value);
+					case 'H' -> h = Integer.parseInt(value);
+					case 'C' -> colorSpace = value;
+					case 'X' -> fullRange |= value.equalsIgnoreCase("COLORRANGE=FULL");
+				}
+			}
+			if (w <= 0 || h <= 0) {
+				throw new IOException("Invalid YUV4MPEG2 frame size: " + w + "x" + h);
+			}
+			long chromaWidth = (w + 1) / 2, chromaHeight = (h + 1) / 2;
+			this.chromaSize = switch (colorSpace) {
+				case "420", "420jpeg", "420paldv", "420mpeg2" -> 2 * chromaWidth * chromaHeight;
+				case "422" -> 2 * chromaWidth * h;
+				case "444" -> 2L * w * h;
+				case "444alpha" -> 3L * w * h;
+				case "mono" -> 0;
+				default -> throw new IOException("Unsupported YUV4MPEG2 color space: " + colorSpace);
+			};
+			this.y4m = true;
+			this.srcWidth = w;
+			this.srcHeight = h;
+			this.rangeLut = fullRange ? null : createRangeLut();
+		} else {
+			in.reset();
+			if (rawWidth <= 0 || rawHeight <= 0) {
+				throw new IOException("Input is not YUV4MPEG2; raw gray frames need a frame size");
+			}
+			this.y4m = false;
+			this.chromaSize = 0;
+			this.srcWidth = rawWidth;
+			this.srcHeight = rawHeight;
+			this.rangeLut = null;
+		}
+	}
+
+	private static byte[] createRangeLut() {
+		byte[] lut = new byte[256];
+		for (int i = 0; i < 256; i++) {
+			lut[i] = (byte) Math.min(255, Math.max(0, Math.round((i - 16) * 255.0f / 219.0f)));
+		}
+		return lut;
+	}
+
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0) {
+				throw new EOFException("Truncated YUV4MPEG2 header");
+			}
+			line.write(c);
+		}
+		return line.toString(StandardCharsets.US_ASCII);
+	}
+
+	@Override
+	public int getFrameCount() {
+		return -1;
+	}
+
+	/**
+	 * @return Whether a frame was read; false at the end of the stream.
+	 */
+	private boolean readFrame(byte[] dest) throws IOException {
+		if (y4m) {
+			int c = in.read();
+			if (c < 0) {
+				return false;
+			}
+			String header = (char) c + readLine();
+			if (!header.startsWith("FRAME")) {
+				throw new IOException("Invalid YUV4MPEG2 frame header: " + header);
+			}
+		}
+		int n = in.readNBytes(dest, 0, srcWidth * srcHeight);
+		if (n == 0 && !y4m) {
+			return false;
+		} else if (n < srcWidth * srcHeight) {
+			throw new EOFException("Truncated frame " + nextIndex);
+		}
+		if (chromaSize > 0) {
+			in.skipNBytes(chromaSize);
+		}
+		if (rangeLut != null) {
+			for (int i = 0; i < n; i++) {
+				dest[i] = rangeLut[dest[i] & 0xFF];
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean read(int index, byte[] dest) throws IOException {
+		byte[] samples;
+		synchronized (this) {
+			while (nextIndex <= index && !ended) {
+				byte[] buffer = acquireSourceBuffer(srcWidth * srcHeight);
+				if ((maxFrames >= 0 && nextIndex >= maxFrames) || !readFrame(buffer)) {
+					releaseSourceBuffer(buffer);
+					ended = true;
+				} else {
+					readAhead.put(nextIndex++, buffer);
+				}
+			}
+			samples = readAhead.remove(index);
+		}
+		if (samples == null) {
+			return false;
+		}
+		if (dest != null) {
+			getResampler(srcWidth, srcHeight).resample(samples, dest);
+		}
+		releaseSourceBuffer(samples);
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
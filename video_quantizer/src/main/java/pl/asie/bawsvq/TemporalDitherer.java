@@ -0,0 +1,59 @@
+package pl.asie.bawsvq;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * Biases another ditherer toward the previous frame's output: a pixel keeps its previous level if its new value
+ * is within half a level plus a threshold of it. This removes most of the frame-to-frame flicker of dither
+ * patterns over slowly changing or noisy gradients, which would otherwise turn into tile uploads.
+ * <p>
+ * With error diffusion, the previous level is preferred while diffusing, so the kept pixels' error is still
+ * spread to their neighbours; other ditherers have their output patched afterwards.
+ */
+@Getter
+@EqualsAndHashCode
+public final class TemporalDitherer implements Ditherer {
+	private final Ditherer base;
+	private final float threshold;
+
+	public TemporalDitherer(Ditherer base, float threshold) {
+		if (base instanceof TemporalDitherer) {
+			throw new IllegalArgumentException("Temporal ditherers do not nest");
+		}
+		this.base = base;
+		this.threshold = threshold;
+	}
+
+	@Override
+	public boolean isTemporal() {
+		return true;
+	}
+
+	@Override
+	public String getKey() {
+		return "temporal:" + threshold + ":" + base.getKey();
+	}
+
+	@Override
+	public void dither(float[] tones, int width, int height, int steps, byte[] previous, byte[] dest) {
+		float keepDistance = 0.5f + threshold;
+		if (previous == null) {
+			base.dither(tones, width, height, steps, null, dest);
+		} else if (base instanceof ErrorDiffusionDitherer diffusion) {
+			diffusion.diffuse(tones, width, height, steps, previous, keepDistance, dest);
+		} else {
+			base.dither(tones, width, height, steps, null, dest);
+			for (int i = 0; i < width * height; i++) {
+				if (Math.abs(tones[i] * (steps - 1) - previous[i]) <= keepDistance) {
+					dest[i] = previous[i];
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "temporal:" + base + " (threshold " + threshold + ")";
+	}
+}
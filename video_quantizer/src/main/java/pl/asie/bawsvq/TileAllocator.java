@@ -0,0 +1,308 @@
+package pl.asie.bawsvq;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Assigns global tiles to VRAM tile slots.
+ * <p>
+ * Each slot is reference counted by the screen positions showing it. A position which stops showing a slot
+ * keeps it pinned until the end of the frame, as the previous frame is still on screen while the next one is drawn.
+ * Slots with no references are candidates for eviction (and a re-upload of their tile, should it be needed again).
+ * By default, the least recently released slot is evicted first. Given the full sequence of future
+ * allocations, as recorded by a previous run, the slot whose tile is needed again furthest in the future
+ * is evicted instead, which is optimal (Belady's algorithm). Slot 0 always holds global tile 0.
+ */
+public class TileAllocator {
+	public static final int NEW = 0x1000;
+	private static final int NONE = -1;
+
+	private interface FreeSlots {
+		void add(int slot);
+
+		void remove(int slot);
+
+		int poll();
+	}
+
+	private static final class LruSlots implements FreeSlots {
+		private final int[] prev, next;
+		private int head = NONE, tail = NONE;
+
+		private LruSlots(int slotCount) {
+			this.prev = new int[slotCount];
+			this.next = new int[slotCount];
+		}
+
+		@Override
+		public void add(int slot) {
+			prev[slot] = tail;
+			next[slot] = NONE;
+			if (tail != NONE) {
+				next[tail] = slot;
+			} else {
+				head = slot;
+			}
+			tail = slot;
+		}
+
+		@Override
+		public void remove(int slot) {
+			int p = prev[slot];
+			int n = next[slot];
+			if (p != NONE) {
+				next[p] = n;
+			} else {
+				head = n;
+			}
+			if (n != NONE) {
+				prev[n] = p;
+			} else {
+				tail = p;
+			}
+		}
+
+		@Override
+		public int poll() {
+			int slot = head;
+			if (slot != NONE) {
+				remove(slot);
+			}
+			return slot;
+		}
+	}
+
+	/**
+	 * Indexed binary max-heap of slots, keyed on the allocation index at which their tile is next needed.
+	 */
+	private static final class NextUseSlots implements FreeSlots {
+		private final int[] nextUse;
+		private final int[] heap, heapPos;
+		private int size;
+
+		private NextUseSlots(int[] nextUse) {
+			this.nextUse = nextUse;
+			this.heap = new int[nextUse.length];
+			this.heapPos = new int[nextUse.length];
+		}
+
+		private void swap(int i, int j) {
+			int a = heap[i], b = heap[j];
+			heap[i] = b;
+			heap[j] = a;
+			heapPos[b] = i;
+			heapPos[a] = j;
+		}
+
+		private void siftUp(int i) {
+			while (i > 0) {
+				int parent = (i - 1) >> 1;
+				if (nextUse[heap[parent]] >= nextUse[heap[i]]) {
+					break;
+				}
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		private void siftDown(int i) {
+			while (true) {
+				int child = (i << 1) + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && nextUse[heap[child + 1]] > nextUse[heap[child]]) {
+					child++;
+				}
+				if (nextUse[heap[i]] >= nextUse[heap[child]]) {
+					break;
+				}
+				swap(i, child);
+				i = child;
+			}
+		}
+
+		@Override
+		public void add(int slot) {
+			heap[size] = slot;
+			heapPos[slot] = size;
+			siftUp(size++);
+		}
+
+		@Override
+		public void remove(int slot) {
+			int i = heapPos[slot];
+			swap(i, --size);
+			if (i < size) {
+				siftDown(i);
+				siftUp(i);
+			}
+		}
+
+		@Override
+		public int poll() {
+			if (size == 0) {
+				return NONE;
+			}
+			int slot = heap[0];
+			remove(slot);
+			return slot;
+		}
+	}
+
+	@Getter
+	private final int slotCount;
+	private final int[] slotGlobalId;
+	private final int[] refCount;
+	private final FreeSlots freeSlots;
+	private final Int2IntMap globalIdToSlot = new Int2IntOpenHashMap();
+	private final IntList trace, lookaheadTrace;
+	private final int[] futureUses;
+	private final int[] slotNextUse;
+	private int[] pendingReleases = new int[64];
+	private int pendingReleaseCount;
+	private int allocationIndex;
+	@Getter
+	private int uploads, evictions;
+
+	private TileAllocator(int slotCount, boolean recordTrace, IntList lookaheadTrace, int[] futureUses) {
+		if (slotCount < 2 || slotCount > NEW) {
+			throw new IllegalArgumentException("Invalid slot count: " + slotCount);
+		}
+		this.slotCount = slotCount;
+		this.slotGlobalId = new int[slotCount];
+		this.refCount = new int[slotCount];
+		this.trace = recordTrace ? new IntArrayList() : null;
+		this.lookaheadTrace = lookaheadTrace;
+		this.futureUses = futureUses;
+		if (futureUses != null) {
+			this.slotNextUse = new int[slotCount];
+			Arrays.fill(this.slotNextUse, Integer.MAX_VALUE);
+			this.freeSlots = new NextUseSlots(this.slotNextUse);
+		} else {
+			this.slotNextUse = null;
+			this.freeSlots = new LruSlots(slotCount);
+		}
+		Arrays.fill(slotGlobalId, NONE);
+		slotGlobalId[0] = 0;
+		globalIdToSlot.defaultReturnValue(NONE);
+		globalIdToSlot.put(0, 0);
+		for (int i = 1; i < slotCount; i++) {
+			freeSlots.add(i);
+		}
+	}
+
+	public TileAllocator(int slotCount) {
+		this(slotCount, false, null, null);
+	}
+
+	/**
+	 * Create an LRU allocator which records the sequence of global tiles it is asked for,
+	 * for use with {@link #withLookahead(int, IntList)} in a second pass.
+	 */
+	public static TileAllocator tracing(int slotCount) {
+		return new TileAllocator(slotCount, true, null, null);
+	}
+
+	/**
+	 * Create an allocator which evicts the slot needed again furthest in the future.
+	 * It must then be asked for exactly the same sequence of global tiles as the trace.
+	 */
+	public static TileAllocator withLookahead(int slotCount, IntList trace) {
+		int[] futureUses = new int[trace.size()];
+		Int2IntMap nextSeen = new Int2IntOpenHashMap();
+		nextSeen.defaultReturnValue(Integer.MAX_VALUE);
+		for (int i = trace.size() - 1; i >= 0; i--) {
+			futureUses[i] = nextSeen.put(trace.getInt(i), i);
+		}
+		return new TileAllocator(slotCount, false, trace, futureUses);
+	}
+
+	public IntList getTrace() {
+		if (trace == null) {
+			throw new IllegalStateException("Allocator was not created with tracing enabled");
+		}
+		return trace;
+	}
+
+	/**
+	 * Find or allocate a slot for the given global tile, and add a reference to it.
+	 *
+	 * @return The slot, with {@link #NEW} set if the tile has to be uploaded to it.
+	 */
+	public int acquire(int globalId) {
+		if (globalId == 0) {
+			return 0;
+		}
+		if (trace != null) {
+			trace.add(globalId);
+		}
+		if (lookaheadTrace != null && (allocationIndex >= lookaheadTrace.size() || lookaheadTrace.getInt(allocationIndex) != globalId)) {
+			throw new IllegalStateException("Allocation sequence does not match the lookahead trace at index " + allocationIndex);
+		}
+		int slot = globalIdToSlot.get(globalId);
+		int flags = 0;
+		if (slot == NONE) {
+			slot = freeSlots.poll();
+			if (slot == NONE) {
+				throw new RuntimeException("No free tile slots");
+			}
+			if (slotGlobalId[slot] != NONE) {
+				globalIdToSlot.remove(slotGlobalId[slot]);
+				evictions++;
+			}
+			slotGlobalId[slot] = globalId;
+			globalIdToSlot.put(globalId, slot);
+			uploads++;
+			flags = NEW;
+		} else if (refCount[slot] == 0) {
+			freeSlots.remove(slot);
+		}
+		refCount[slot]++;
+		if (futureUses != null) {
+			slotNextUse[slot] = futureUses[allocationIndex];
+		}
+		allocationIndex++;
+		return slot | flags;
+	}
+
+	/**
+	 * @return Whether the global tile is in a slot referenced by the screen, and so cannot have been evicted.
+	 * Unlike residency in general, this does not depend on the eviction policy.
+	 */
+	public boolean isPinned(int globalId) {
+		if (globalId == 0) {
+			return true;
+		}
+		int slot = globalIdToSlot.get(globalId);
+		return slot != NONE && refCount[slot] > 0;
+	}
+
+	/**
+	 * Drop a reference to a slot at the end of the current frame.
+	 */
+	public void release(int slot) {
+		if (slot == 0) {
+			return;
+		}
+		if (pendingReleaseCount == pendingReleases.length) {
+			pendingReleases = Arrays.copyOf(pendingReleases, pendingReleases.length * 2);
+		}
+		pendingReleases[pendingReleaseCount++] = slot;
+	}
+
+	public void endFrame() {
+		for (int i = 0; i < pendingReleaseCount; i++) {
+			int slot = pendingReleases[i];
+			if (--refCount[slot] == 0) {
+				freeSlots.add(slot);
+			}
+		}
+		pendingReleaseCount = 0;
+	}
+}
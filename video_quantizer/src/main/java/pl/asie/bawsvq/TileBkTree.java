@@ -0,0 +1,106 @@
+package pl.asie.bawsvq;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * Burkhard-Keller tree over packed tiles, using {@link PackedTile#distance(long, long, long, long)}.
+ * Finds the nearest stored tile within a given distance without comparing against every tile.
+ */
+public class TileBkTree {
+	private static final int NONE = -1;
+
+	private long[] tiles = new long[1024];
+	private int[] values = new int[512];
+	private int[] firstChild = new int[512];
+	private int[] nextSibling = new int[512];
+	private int[] edgeDistance = new int[512];
+	private int size;
+	private final IntArrayList stack = new IntArrayList();
+	private int bestValue, bestDistance;
+
+	public int size() {
+		return size;
+	}
+
+	private int addNode(long p0, long p1, int value, int distance) {
+		if (size == values.length) {
+			int capacity = size * 2;
+			tiles = Arrays.copyOf(tiles, capacity * 2);
+			values = Arrays.copyOf(values, capacity);
+			firstChild = Arrays.copyOf(firstChild, capacity);
+			nextSibling = Arrays.copyOf(nextSibling, capacity);
+			edgeDistance = Arrays.copyOf(edgeDistance, capacity);
+		}
+		int node = size++;
+		tiles[node * 2] = p0;
+		tiles[node * 2 + 1] = p1;
+		values[node] = value;
+		firstChild[node] = NONE;
+		nextSibling[node] = NONE;
+		edgeDistance[node] = distance;
+		return node;
+	}
+
+	public void add(long p0, long p1, int value) {
+		if (size == 0) {
+			addNode(p0, p1, value, 0);
+			return;
+		}
+		int node = 0;
+		while (true) {
+			int d = PackedTile.distance(tiles[node * 2], tiles[node * 2 + 1], p0, p1);
+			if (d == 0) {
+				return;
+			}
+			int child = firstChild[node];
+			while (child != NONE && edgeDistance[child] != d) {
+				child = nextSibling[child];
+			}
+			if (child == NONE) {
+				int newNode = addNode(p0, p1, value, d);
+				nextSibling[newNode] = firstChild[node];
+				firstChild[node] = newNode;
+				return;
+			}
+			node = child;
+		}
+	}
+
+	/**
+	 * Find the value of the nearest tile at most maxDistance away.
+	 *
+	 * @return The value, or -1 if there is no such tile. See {@link #getLastDistance()} for its distance.
+	 */
+	public int findNearest(long p0, long p1, int maxDistance) {
+		bestValue = NONE;
+		bestDistance = maxDistance + 1;
+		if (size == 0) {
+			return NONE;
+		}
+		stack.clear();
+		stack.add(0);
+		while (!stack.isEmpty()) {
+			int node = stack.popInt();
+			int d = PackedTile.distance(tiles[node * 2], tiles[node * 2 + 1], p0, p1);
+			if (d < bestDistance) {
+				bestDistance = d;
+				bestValue = values[node];
+				if (d == 0) {
+					break;
+				}
+			}
+			for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+				if (Math.abs(edgeDistance[child] - d) < bestDistance) {
+					stack.add(child);
+				}
+			}
+		}
+		return bestValue;
+	}
+
+	public int getLastDistance() {
+		return bestValue != NONE ? bestDistance : NONE;
+	}
+}
@@ -0,0 +1,234 @@
+package pl.asie.bawsvq;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Builds a tile set of a fixed size for a whole clip, instead of growing it one frame at a time.
+ * <p>
+ * Every tile a frame changes to is reduced to its canonical form ({@link PackedTile#canonicalize}) and counted.
+ * The distinct canonical tiles are then clustered with weighted k-medians: the distance between a tile and
+ * a center is the smallest {@link PackedTile#distance} under any transform, and each center is updated to the
+ * per-pixel weighted median of its (aligned) members, which minimizes that distance. Centers are seeded
+ * k-means++ style from a fixed seed, starting with the blank tile, so the result is deterministic.
+ */
+public class TileClusterer {
+	private static final int MIN_TASK_SIZE = 64;
+	private static final long SEED = 0x42415753L;
+	private final int tileWidth, tileHeight, steps;
+	private final long invertMask0, invertMask1;
+	private final TileMap tileIds = new TileMap(65536);
+	private final LongArrayList tiles = new LongArrayList();
+	private final IntArrayList weights = new IntArrayList();
+	private final long[] dirtyTiles, diffScratch;
+	private final long[] currTile = new long[2];
+	private QuantizedImage lastImage;
+
+	private static final class RangeTask extends RecursiveAction {
+		private final int from, to;
+		private final IntConsumer body;
+
+		private RangeTask(int from, int to, IntConsumer body) {
+			this.from = from;
+			this.to = to;
+			this.body = body;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= MIN_TASK_SIZE) {
+				for (int i = from; i < to; i++) {
+					body.accept(i);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new RangeTask(from, mid, body), new RangeTask(mid, to, body));
+			}
+		}
+	}
+
+	public TileClusterer(int tileWidth, int tileHeight, int steps) {
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.steps = steps;
+		this.invertMask0 = PackedTile.invertMask(steps, 0);
+		this.invertMask1 = PackedTile.invertMask(steps, 1);
+		this.dirtyTiles = FrameDiff.createBitmap(tileWidth * tileHeight);
+		this.diffScratch = new long[tileWidth];
+		this.lastImage = new QuantizedImage(tileWidth * 8, tileHeight * 8, steps, new byte[tileWidth * tileHeight * 64]);
+	}
+
+	/**
+	 * Count the tiles changed by the next frame of the clip.
+	 */
+	public void addImage(QuantizedImage img) {
+		FrameDiff.compute(lastImage, img, tileWidth, tileHeight, diffScratch, dirtyTiles);
+		for (int tpos = 0; tpos < tileWidth * tileHeight; tpos++) {
+			if (FrameDiff.isDirty(dirtyTiles, tpos)) {
+				PackedTile.pack(img, (tpos % tileWidth) * 8, (tpos / tileWidth) * 8, currTile, 0);
+				PackedTile.canonicalize(currTile[0], currTile[1], invertMask0, invertMask1, currTile, 0);
+				int id = tileIds.get(currTile[0], currTile[1], -1);
+				if (id < 0) {
+					tileIds.put(currTile[0], currTile[1], weights.size());
+					tiles.add(currTile[0]);
+					tiles.add(currTile[1]);
+					weights.add(1);
+				} else {
+					weights.set(id, weights.getInt(id) + 1);
+				}
+			}
+		}
+		lastImage = img;
+	}
+
+	public int getDistinctTileCount() {
+		return weights.size();
+	}
+
+	/**
+	 * @param clusterCount The size of the tile set to build, including the blank tile.
+	 * @param iterations The maximum number of assignment/update rounds.
+	 */
+	public TileRemap cluster(int clusterCount, int iterations, ForkJoinPool pool) {
+		int n = weights.size();
+		int k = Math.max(1, Math.min(clusterCount, n + 1));
+		// all transforms of every tile, so that the distance to a center is the minimum over the eight
+		long[] variants = new long[n * PackedTile.TRANSFORM_COUNT * 2];
+		pool.invoke(new RangeTask(0, n, i -> {
+			for (int t = 0; t < PackedTile.TRANSFORM_COUNT; t++) {
+				variants[(i * PackedTile.TRANSFORM_COUNT + t) * 2] = PackedTile.transform(tiles.getLong(i * 2), t, invertMask0);
+				variants[(i * PackedTile.TRANSFORM_COUNT + t) * 2 + 1] = PackedTile.transform(tiles.getLong(i * 2 + 1), t, invertMask1);
+			}
+		}));
+
+		long[] centers = new long[k * 2];
+		int[] assignment = new int[n];
+		int[] assignmentTransform = new int[n];
+		int[] assignmentDistance = new int[n];
+
+		// seeding: the blank tile, then tiles picked with probability proportional to weight * distance^2
+		Arrays.fill(assignmentDistance, Integer.MAX_VALUE);
+		Random random = new Random(SEED);
+		for (int c = 0; c < k; c++) {
+			if (c > 0) {
+				double total = 0;
+				for (int i = 0; i < n; i++) {
+					double d = assignmentDistance[i];
+					total += weights.getInt(i) * d * d;
+				}
+				if (total <= 0) {
+					k = c;
+					centers = Arrays.copyOf(centers, k * 2);
+					break;
+				}
+				double target = random.nextDouble() * total;
+				double sum = 0;
+				int pick = 0;
+				for (; pick < n - 1; pick++) {
+					double d = assignmentDistance[pick];
+					sum += weights.getInt(pick) * d * d;
+					if (sum > target) {
+						break;
+					}
+				}
+				while (assignmentDistance[pick] == 0) {
+					pick--;
+				}
+				centers[c * 2] = tiles.getLong(pick * 2);
+				centers[c * 2 + 1] = tiles.getLong(pick * 2 + 1);
+			}
+			int center = c;
+			long c0 = centers[c * 2], c1 = centers[c * 2 + 1];
+			pool.invoke(new RangeTask(0, n, i -> {
+				for (int t = 0; t < PackedTile.TRANSFORM_COUNT; t++) {
+					int d = PackedTile.distance(variants[(i * PackedTile.TRANSFORM_COUNT + t) * 2], variants[(i * PackedTile.TRANSFORM_COUNT + t) * 2 + 1], c0, c1);
+					if (d < assignmentDistance[i]) {
+						assignmentDistance[i] = d;
+						assignment[i] = center;
+						assignmentTransform[i] = t;
+					}
+				}
+			}));
+		}
+
+		int[] pixelWeights = new int[k * 64 * 4];
+		for (int iter = 0; iter < iterations; iter++) {
+			// update: each center becomes the per-pixel weighted median of its members, aligned to it
+			Arrays.fill(pixelWeights, 0);
+			for (int i = 0; i < n; i++) {
+				int v = i * PackedTile.TRANSFORM_COUNT + assignmentTransform[i];
+				long p0 = variants[v * 2], p1 = variants[v * 2 + 1];
+				int w = weights.getInt(i);
+				int base = assignment[i] * 256;
+				for (int bit = 0; bit < 64; bit++) {
+					pixelWeights[base + (bit << 2) + (int) (((p0 >>> bit) & 1) | (((p1 >>> bit) & 1) << 1))] += w;
+				}
+			}
+			long[] newCenters = centers;
+			pool.invoke(new RangeTask(1, k, c -> {
+				long p0 = 0, p1 = 0;
+				int base = c * 256;
+				int total = pixelWeights[base] + pixelWeights[base + 1] + pixelWeights[base + 2] + pixelWeights[base + 3];
+				if (total == 0) {
+					return;
+				}
+				for (int bit = 0; bit < 64; bit++) {
+					int idx = base + (bit << 2);
+					int value = 0;
+					int sum = pixelWeights[idx];
+					while (sum * 2 < total) {
+						sum += pixelWeights[idx + ++value];
+					}
+					p0 |= ((long) (value & 1)) << bit;
+					p1 |= ((long) (value >> 1)) << bit;
+				}
+				newCenters[c * 2] = p0;
+				newCenters[c * 2 + 1] = p1;
+			}));
+
+			// assignment: the nearest center under any transform
+			int centerCount = k;
+			int[] changed = new int[n];
+			pool.invoke(new RangeTask(0, n, i -> {
+				int bestDistance = Integer.MAX_VALUE, bestCenter = 0, bestTransform = 0;
+				int v = i * PackedTile.TRANSFORM_COUNT * 2;
+				for (int c = 0; c < centerCount && bestDistance > 0; c++) {
+					long c0 = newCenters[c * 2], c1 = newCenters[c * 2 + 1];
+					for (int t = 0; t < PackedTile.TRANSFORM_COUNT; t++) {
+						int d = PackedTile.distance(variants[v + t * 2], variants[v + t * 2 + 1], c0, c1);
+						if (d < bestDistance) {
+							bestDistance = d;
+							bestCenter = c;
+							bestTransform = t;
+						}
+					}
+				}
+				if (assignment[i] != bestCenter) {
+					changed[i] = 1;
+				}
+				assignment[i] = bestCenter;
+				assignmentTransform[i] = bestTransform;
+				assignmentDistance[i] = bestDistance;
+			}));
+			int changedCount = 0;
+			for (int i = 0; i < n; i++) {
+				changedCount += changed[i];
+			}
+			if (changedCount == 0) {
+				break;
+			}
+		}
+
+		TileMap assignments = new TileMap(n);
+		for (int i = 0; i < n; i++) {
+			assignments.put(tiles.getLong(i * 2), tiles.getLong(i * 2 + 1), assignment[i] | (assignmentTransform[i] << 24));
+		}
+		return new TileRemap(assignments, centers, steps);
+	}
+}
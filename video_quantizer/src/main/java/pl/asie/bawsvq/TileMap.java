@@ -0,0 +1,104 @@
+package pl.asie.bawsvq;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressed hash map from a packed tile (two longs, see {@link PackedTile}) to a non-negative int.
+ */
+public class TileMap {
+	private long[] keys;
+	private int[] values;
+	private int mask, size, maxFill;
+
+	public TileMap(int expected) {
+		allocate(HashCommon.arraySize(expected, 0.75f));
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity * 2];
+		this.values = new int[capacity];
+		this.mask = capacity - 1;
+		this.maxFill = HashCommon.maxFill(capacity, 0.75f);
+		Arrays.fill(this.values, -1);
+	}
+
+	private static int hash(long p0, long p1) {
+		return (int) HashCommon.mix(p0 ^ HashCommon.mix(p1));
+	}
+
+	private int find(long p0, long p1) {
+		int pos = hash(p0, p1) & mask;
+		while (values[pos] >= 0) {
+			if (keys[pos * 2] == p0 && keys[pos * 2 + 1] == p1) {
+				return pos;
+			}
+			pos = (pos + 1) & mask;
+		}
+		return -(pos + 1);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return values.length;
+	}
+
+	public int get(long p0, long p1, int defaultValue) {
+		int pos = find(p0, p1);
+		return pos >= 0 ? values[pos] : defaultValue;
+	}
+
+	public void put(long p0, long p1, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative values are not supported: " + value);
+		}
+		int pos = find(p0, p1);
+		if (pos >= 0) {
+			values[pos] = value;
+		} else {
+			insert(-pos - 1, p0, p1, value);
+		}
+	}
+
+	public boolean putIfAbsent(long p0, long p1, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative values are not supported: " + value);
+		}
+		int pos = find(p0, p1);
+		if (pos >= 0) {
+			return false;
+		}
+		insert(-pos - 1, p0, p1, value);
+		return true;
+	}
+
+	private void insert(int pos, long p0, long p1, int value) {
+		keys[pos * 2] = p0;
+		keys[pos * 2 + 1] = p1;
+		values[pos] = value;
+		if (++size >= maxFill) {
+			rehash(values.length * 2);
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] >= 0) {
+				int pos = hash(oldKeys[i * 2], oldKeys[i * 2 + 1]) & mask;
+				while (values[pos] >= 0) {
+					pos = (pos + 1) & mask;
+				}
+				keys[pos * 2] = oldKeys[i * 2];
+				keys[pos * 2 + 1] = oldKeys[i * 2 + 1];
+				values[pos] = oldValues[i];
+			}
+		}
+	}
+}
@@ -3,230 +3,909 @@ package pl.asie.bawsvq;
 import com.google.common.io.LittleEndianDataOutputStream;
 import it.unimi.dsi.fastutil.bytes.ByteOpenHashSet;
 import it.unimi.dsi.fastutil.bytes.ByteSet;
-import it.unimi.dsi.fastutil.ints.Int2IntMap;
-import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
-import it.unimi.dsi.fastutil.ints.IntSet;
-import it.unimi.dsi.fastutil.objects.Object2IntMap;
-import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import lombok.Getter;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
 
 public class TilePacker {
+	/**
+	 * The original command set, with no header.
+	 */
+	public static final int COMMAND_VERSION_LEGACY = 1;
+	/**
+	 * Adds a 0xF2 version header, runs of identical (0xC0) and consecutive (0xD0) tile data,
+	 * and bank padding only when the next command would not fit.
+	 */
+	public static final int COMMAND_VERSION_COMPACT = 2;
+	/**
+	 * Adds 0xF3 extended commands: ending a frame after more than 7 vblanks (0xF3 0x00 n), and saving (0xF3 0x01 slot)
+	 * and restoring (0xF3 0x02 slot) the screen map in the decoder's screen cache. Frames which change nothing are
+	 * merged into the previous frame's hold.
+	 */
+	public static final int COMMAND_VERSION_REPLAY = 3;
+	/**
+	 * The screen maps the decoder can cache, SCREEN_CACHE_SLOTS in src/config.h. The decoder's cache is a static array
+	 * of that many 1136-byte maps, so raising both only needs the ROM to still link; higher slots would be out of bounds.
+	 */
+	public static final int MAX_SCREEN_CACHE_SLOTS = 1;
+	private static final int MAX_HOLD_VBLANKS = 255;
+	private static final int MAX_RUN_LENGTH = 17;
+	// width of the decoder's screen map, in tiles
+	private static final int SCREEN_WIDTH = 32;
 	private final static int FLIP_H = 0x01000000;
 	private final static int FLIP_V = 0x02000000;
 	private final static int INVERT = 0x04000000;
 	private final static int ID_MASK = 0x00FFFFFF;
+	private final static int TRANSFORM_SHIFT = 24;
+	// frame end, worst-case bank padding and long skips, none of which are known before emitting a frame
+	private final static int FRAME_OVERHEAD_BYTES = 10;
 	private final int tileWidth, tileHeight, steps;
-	private final List<QuantizedImage> globalTiles = new ArrayList<>(524288);
-	private final IntSet currentlyDisplayedTiles = new IntOpenHashSet();
-	private final int[] displayedTiles;
-	private final int[] tileAllocation = new int[512];
-	private final Int2IntMap tileGlobalIdToAllocationId = new Int2IntOpenHashMap();
-	private final Object2IntMap<QuantizedImage> tileToGlobalId = new Object2IntOpenHashMap<>(524288);
+	private final long invertMask0, invertMask1;
+	private final LongArrayList globalTiles = new LongArrayList(524288 * 2);
+	private final int[] displayedTiles, displayedGlobalIds;
+	@Getter
+	private final TileAllocator allocator;
+	// canonical form -> global id | (transform from the global tile to the canonical form << TRANSFORM_SHIFT)
+	private final TileMap tileToGlobalId = new TileMap(65536);
+	private final TileBkTree tileIndex = new TileBkTree();
+	private int maxTileDistance;
+	private TileRemap tileRemap;
+	@Getter
+	private int lossyMatches;
+	private final long[] dirtyTiles, pendingTiles, diffScratch;
+	private final long[] currTile = new long[2];
+	private final long[] canonicalTile = new long[2];
+	// ShardedTileAnalyzer dictionary id -> global id | (transform from the global tile to the canonical form)
+	private final IntArrayList keyToGlobalId = new IntArrayList();
+	private final long[] displayedPlanes;
+	private final int[] deferredFrames;
+	private final int[] candPos, candId, candKey, candError;
+	private final long[] candTiles;
+	private final long[] candPriority;
+	private final boolean[] candSelected;
+	private final IntOpenHashSet budgetUploads = new IntOpenHashSet();
+	private int maxUploadsPerFrame, maxCommandBytesPerFrame;
+	private int frameStartSize;
+	private int commandVersion = COMMAND_VERSION_REPLAY;
+	private final int[] placeScrpos, placeTileData, placeUpload;
+	private final int[] runCost, runLength;
+	private ScreenCachePlan screenCachePlan;
+	private CachedScreen[] cachedScreens;
+	private int frameIndex;
+	// the end of the last frame, not yet written, as the next frames may extend it
+	private boolean frameEndHeld;
+	private int heldVbls;
+	@Getter
+	private int heldFrames, replayedFrames;
+	@Getter
+	private final FrameStats frameStats = new FrameStats();
+	private EncoderMetrics.Histogram packTimer, uploadsPerFrame, commandBytesPerFrame;
+	private LongAdder framesPacked, bankPadBytes;
 	private QuantizedImage lastImage;
-	private final ByteArrayOutputStream cmdOutBytes = new ByteArrayOutputStream();
-	private final DataOutputStream cmdOut = new DataOutputStream(cmdOutBytes);
+	private CommandSink commandSink = CommandSink.inMemory();
+	private DecodeSimulator decodeSimulator;
+	// every command byte also goes to the decode simulator, if any
+	private final DataOutputStream cmdOut = new DataOutputStream(new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			commandSink.write(b);
+			if (decodeSimulator != null) {
+				decodeSimulator.write(b);
+			}
+		}
+	});
 	private int globalTilesEstimatedSize = 0;
-	private int lastTileAllocationId = 0;
 	private int lastPlacedTileId = -1;
 	private boolean lastBorderBlack = true;
 	private final double vblsPerFrame;
 	private double vblsCounter;
 
+	/**
+	 * A screen map saved to the decoder's screen cache, with the tiles it shows, which it keeps resident.
+	 */
+	private static final class CachedScreen {
+		private final int[] slots, globalIds;
+		private final long[] planes, pending;
+
+		private CachedScreen(int[] slots, int[] globalIds, long[] planes, long[] pending) {
+			this.slots = slots;
+			this.globalIds = globalIds;
+			this.planes = planes;
+			this.pending = pending;
+		}
+	}
+
 	public TilePacker(int tileWidth, int tileHeight, int steps, double vblsPerFrame) {
+		this(tileWidth, tileHeight, steps, vblsPerFrame, 512);
+	}
+
+	/**
+	 * @param tileSlots The number of VRAM tile slots available. The command stream can address at most 512.
+	 */
+	public TilePacker(int tileWidth, int tileHeight, int steps, double vblsPerFrame, int tileSlots) {
+		this(tileWidth, tileHeight, steps, vblsPerFrame, new TileAllocator(tileSlots));
+	}
+
+	public TilePacker(int tileWidth, int tileHeight, int steps, double vblsPerFrame, TileAllocator allocator) {
+		if (tileWidth > SCREEN_WIDTH) {
+			throw new IllegalArgumentException("The screen is at most " + SCREEN_WIDTH + " tiles wide");
+		}
+		if (allocator.getSlotCount() > 512) {
+			throw new IllegalArgumentException("The command stream cannot address more than 512 tile slots");
+		}
+		this.allocator = allocator;
 		this.tileWidth = tileWidth;
 		this.tileHeight = tileHeight;
 		this.steps = steps;
+		this.invertMask0 = PackedTile.invertMask(steps, 0);
+		this.invertMask1 = PackedTile.invertMask(steps, 1);
 		this.lastImage = new QuantizedImage(this.tileWidth * 8, this.tileHeight * 8, steps, new byte[this.tileWidth * this.tileHeight * 64]);
-		this.displayedTiles = new int[tileWidth * tileHeight];
+		int tileCount = tileWidth * tileHeight;
+		this.dirtyTiles = FrameDiff.createBitmap(tileCount);
+		this.pendingTiles = FrameDiff.createBitmap(tileCount);
+		this.diffScratch = new long[tileWidth];
+		this.displayedTiles = new int[tileCount];
+		this.displayedGlobalIds = new int[tileCount];
+		this.displayedPlanes = new long[tileCount * 2];
+		this.deferredFrames = new int[tileCount];
+		this.candPos = new int[tileCount];
+		this.candId = new int[tileCount];
+		this.candKey = new int[tileCount];
+		this.candError = new int[tileCount];
+		this.candTiles = new long[tileCount * 2];
+		this.candPriority = new long[tileCount];
+		this.candSelected = new boolean[tileCount];
+		this.placeScrpos = new int[tileCount];
+		this.placeTileData = new int[tileCount];
+		this.placeUpload = new int[tileCount];
+		this.runCost = new int[tileCount + 1];
+		this.runLength = new int[tileCount];
 		this.vblsPerFrame = vblsPerFrame;
 
-		globalTiles.add(new QuantizedImage(8, 8, steps, new byte[64]));
-		tileToGlobalId.put(globalTiles.get(0), 0);
-		tileToGlobalId.put(globalTiles.get(0).invert(), INVERT);
-		tileGlobalIdToAllocationId.put(0, 0);
-		globalTilesEstimatedSize += getTileStorageSize(globalTiles.get(0));
+		globalTiles.add(0L);
+		globalTiles.add(0L);
+		tileToGlobalId.put(0L, 0L, 0);
+		tileIndex.add(0L, 0L, 0);
+		globalTilesEstimatedSize += getTileStorageSize();
+	}
+
+	// moves byte i of the low half to byte 2 * i
+	private static long spreadBytes(long v) {
+		v &= 0xFFFFFFFFL;
+		v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+		return (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+	}
+
+	/**
+	 * Store tiles, from the given one on, in the decoder's format: for each row, a byte of each bitplane, inverted.
+	 *
+	 * @param buffer A little-endian buffer.
+	 * @return The next tile to store, once the buffer is full or all tiles are stored.
+	 */
+	private int putTiles(ByteBuffer buffer, int tile) {
+		int tileCount = getGlobalTileCount();
+		int tileSize = getTileStorageSize();
+		for (; tile < tileCount && buffer.remaining() >= tileSize; tile++) {
+			long p0 = ~globalTiles.getLong(tile * 2);
+			if (steps >= 4) {
+				long p1 = ~globalTiles.getLong(tile * 2 + 1);
+				buffer.putLong(spreadBytes(p0) | (spreadBytes(p1) << 8));
+				buffer.putLong(spreadBytes(p0 >>> 32) | (spreadBytes(p1 >>> 32) << 8));
+			} else {
+				buffer.putLong(p0);
+			}
+		}
+		return tile;
 	}
 
 	public void writeTiles(OutputStream stream) throws IOException {
-		for (QuantizedImage image : globalTiles) {
-			for (int iy = 0; iy < 8; iy++) {
-				int v0 = 0;
-				int v1 = 0;
-				for (int ix = 0; ix < 8; ix++) {
-					int v = image.get(ix, iy) ^ 0xFF;
-					v0 |= (v & 0x1) << (7 - ix);
-					v1 |= (((v >> 1) & 0x1)) << (7 - ix);
-				}
-				stream.write(v0);
-				if (image.getSteps() >= 4) {
-					stream.write(v1);
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		for (int tile = 0; tile < getGlobalTileCount(); ) {
+			buffer.clear();
+			tile = putTiles(buffer, tile);
+			stream.write(buffer.array(), 0, buffer.position());
+		}
+	}
+
+	/**
+	 * Write the tiles to a file, through a large direct buffer. The file is written under a temporary name,
+	 * and only replaced once all tiles are written.
+	 */
+	public void writeTiles(Path path) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				for (int tile = 0; tile < getGlobalTileCount(); ) {
+					buffer.clear();
+					tile = putTiles(buffer, tile);
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
 				}
 			}
+			Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tempPath);
+		}
+	}
+
+	/**
+	 * Enable lossy tile reuse: a tile with no exact match will be replaced by the nearest existing tile
+	 * (under any transform) at most this many pixel steps away, as per {@link PackedTile#distance(long, long, long, long)}.
+	 *
+	 * @param maxTileDistance The maximum distance; 0 disables lossy reuse.
+	 */
+	public void setMaxTileDistance(int maxTileDistance) {
+		if (maxTileDistance < 0) {
+			throw new IllegalArgumentException("Invalid tile distance: " + maxTileDistance);
+		}
+		this.maxTileDistance = maxTileDistance;
+	}
+
+	public int getMaxTileDistance() {
+		return maxTileDistance;
+	}
+
+	/**
+	 * Limit the work the decoder has to do per frame. Tile changes over the budget are deferred to later frames,
+	 * the ones with the least pixel error (weighted by how long they have been deferred) first.
+	 * Costs are estimated conservatively: a tile is assumed to need an upload unless it is on screen.
+	 *
+	 * @param maxUploads The maximum number of tile uploads per frame, or 0 for no limit.
+	 * @param maxCommandBytes The maximum number of command bytes per frame, or 0 for no limit.
+	 */
+	public void setFrameBudget(int maxUploads, int maxCommandBytes) {
+		if (maxUploads < 0 || maxCommandBytes < 0 || (maxCommandBytes > 0 && maxCommandBytes < FRAME_OVERHEAD_BYTES + 4)) {
+			throw new IllegalArgumentException("Invalid frame budget: " + maxUploads + " uploads, " + maxCommandBytes + " bytes");
+		}
+		this.maxUploadsPerFrame = maxUploads;
+		this.maxCommandBytesPerFrame = maxCommandBytes;
+	}
+
+	/**
+	 * Replace every tile with its approximation from a reduced tile set before encoding it.
+	 *
+	 * @param tileRemap The tile set, as built by {@link TileClusterer}, or null to encode tiles as they are.
+	 */
+	public void setTileRemap(TileRemap tileRemap) {
+		this.tileRemap = tileRemap;
+	}
+
+	/**
+	 * Replay repeated frames from the decoder's screen cache, as planned; requires {@link #COMMAND_VERSION_REPLAY}.
+	 * The plan must be the same for every pass over the frames, so that they all ask the allocator for the same tiles.
+	 *
+	 * @param screenCachePlan The plan, or null to replay nothing.
+	 */
+	public void setScreenCachePlan(ScreenCachePlan screenCachePlan) {
+		if (screenCachePlan != null && commandVersion < COMMAND_VERSION_REPLAY) {
+			throw new IllegalStateException("Screen cache replays need command version " + COMMAND_VERSION_REPLAY);
+		}
+		if (screenCachePlan != null && screenCachePlan.getSlotCount() > MAX_SCREEN_CACHE_SLOTS) {
+			throw new IllegalArgumentException("The decoder only has " + MAX_SCREEN_CACHE_SLOTS + " screen cache slots, not " + screenCachePlan.getSlotCount());
+		}
+		this.screenCachePlan = screenCachePlan;
+		this.cachedScreens = screenCachePlan != null ? new CachedScreen[screenCachePlan.getSlotCount()] : null;
+	}
+
+	/**
+	 * Write the command stream to the given sink, rather than keeping it in memory.
+	 * The packer does not close the sink.
+	 */
+	public void setCommandSink(CommandSink commandSink) {
+		if (this.commandSink.size() > 0) {
+			throw new IllegalStateException("Command sink must be set before encoding");
+		}
+		this.commandSink = commandSink;
+	}
+
+	/**
+	 * Decode the command stream as it is written, to check that the decoder keeps up with it;
+	 * a strict simulator fails the frame which makes the decoder fall behind.
+	 *
+	 * @param decodeSimulator The simulator, or null to simulate nothing.
+	 */
+	public void setDecodeSimulator(DecodeSimulator decodeSimulator) {
+		if (commandSink.size() > 0) {
+			throw new IllegalStateException("Decode simulator must be set before encoding");
+		}
+		this.decodeSimulator = decodeSimulator;
+	}
+
+	public void setCommandVersion(int commandVersion) {
+		if (commandVersion < COMMAND_VERSION_LEGACY || commandVersion > COMMAND_VERSION_REPLAY) {
+			throw new IllegalArgumentException("Unsupported command version: " + commandVersion);
+		}
+		if (commandSink.size() > 0) {
+			throw new IllegalStateException("Command version must be set before encoding");
+		}
+		this.commandVersion = commandVersion;
+	}
+
+	public int getCommandVersion() {
+		return commandVersion;
+	}
+
+	/**
+	 * Report per-frame packing time, uploads and command bytes, bank padding, the sizes of the tile dictionary
+	 * and slot allocator, and held and replayed frames, to the given metrics.
+	 *
+	 * @param metrics The metrics, or null to report nothing.
+	 */
+	public void setMetrics(EncoderMetrics metrics) {
+		if (metrics == null) {
+			packTimer = uploadsPerFrame = commandBytesPerFrame = null;
+			framesPacked = bankPadBytes = null;
+			return;
+		}
+		packTimer = metrics.timer("pack.frame_ms");
+		uploadsPerFrame = metrics.histogram("pack.uploads_per_frame");
+		commandBytesPerFrame = metrics.histogram("pack.command_bytes_per_frame");
+		framesPacked = metrics.counter("pack.frames");
+		bankPadBytes = metrics.counter("pack.bank_pad_bytes");
+		metrics.gauge("pack.dictionary_tiles", this::getGlobalTileCount);
+		metrics.gauge("pack.dictionary_load_factor", () -> (double) tileToGlobalId.size() / tileToGlobalId.capacity());
+		metrics.gauge("pack.uploads", allocator::getUploads);
+		metrics.gauge("pack.evictions", allocator::getEvictions);
+		metrics.gauge("pack.tile_bytes", () -> globalTilesEstimatedSize);
+		metrics.gauge("pack.command_bytes", this::getCommandStreamSize);
+		metrics.gauge("pack.held_frames", this::getHeldFrames);
+		metrics.gauge("pack.replayed_frames", this::getReplayedFrames);
+	}
+
+	private void padBank() throws IOException {
+		int padding = 0;
+		while ((commandSink.size() & 0xFFFF) != 0) {
+			cmdOut.writeByte(0xF1);
+			padding++;
+		}
+		if (bankPadBytes != null) {
+			bankPadBytes.add(padding);
+		}
+	}
+
+	/**
+	 * Prepare to write a command: write the stream header first, and move to the next bank if the command
+	 * would not fit in this one, leaving room for the 0xF1 bank switch.
+	 */
+	private void beginCommand(int length) throws IOException {
+		if (commandVersion == COMMAND_VERSION_LEGACY) {
+			return;
+		}
+		if (frameEndHeld) {
+			writeFrameEnd();
+		}
+		if (commandSink.size() == 0) {
+			cmdOut.writeByte(0xF2);
+			cmdOut.writeByte(commandVersion);
+		}
+		if ((commandSink.size() & 0xFFFF) + length > 0xFFFF) {
+			padBank();
+		}
+	}
+
+	private void writeFrameEnd() throws IOException {
+		frameEndHeld = false;
+		if (heldVbls <= 7) {
+			beginCommand(1);
+			cmdOut.writeByte(0xF8 + heldVbls);
+		} else {
+			beginCommand(3);
+			cmdOut.writeByte(0xF3);
+			cmdOut.writeByte(0x00);
+			cmdOut.writeByte(heldVbls);
+		}
+	}
+
+	/**
+	 * @return The most vblanks a frame can be shown for in the given command stream version.
+	 */
+	public static int getMaxFrameVblanks(int commandVersion) {
+		return commandVersion < COMMAND_VERSION_REPLAY ? 7 : MAX_HOLD_VBLANKS;
+	}
+
+	/**
+	 * End a frame. From {@link #COMMAND_VERSION_REPLAY}, the end is held back until the next command is written,
+	 * so that the following frames, if they change nothing, only lengthen it.
+	 */
+	private void endFrame(int vbls) throws IOException {
+		if (vbls > getMaxFrameVblanks(commandVersion)) {
+			throw new IllegalStateException("A frame shown for " + vbls + " vblanks does not fit command version " + commandVersion
+					+ ", which allows at most " + getMaxFrameVblanks(commandVersion));
+		}
+		if (commandVersion < COMMAND_VERSION_REPLAY) {
+			beginCommand(1);
+			cmdOut.writeByte(0xF8 + vbls);
+		} else if (frameEndHeld && commandSink.size() == frameStartSize && heldVbls + vbls <= MAX_HOLD_VBLANKS) {
+			heldVbls += vbls;
+			heldFrames++;
+		} else {
+			if (frameEndHeld) {
+				writeFrameEnd();
+			}
+			frameEndHeld = true;
+			heldVbls = vbls;
+		}
+	}
+
+	private void writeScreenCacheCommand(int command, int slot) throws IOException {
+		beginCommand(3);
+		cmdOut.writeByte(0xF3);
+		cmdOut.writeByte(command);
+		cmdOut.writeByte(slot);
+	}
+
+	/**
+	 * Restore the screen as it was when saved to a cache slot, if that takes fewer bytes than placing the tiles
+	 * which differ. The tiles the saved screen shows are still resident, as saving it added a reference to them.
+	 */
+	private void replayScreen(int slot) throws IOException {
+		CachedScreen screen = cachedScreens[slot];
+		int placementBytes = 0;
+		for (int tpos = 0; tpos < displayedTiles.length; tpos++) {
+			if (screen.planes[tpos * 2] != displayedPlanes[tpos * 2] || screen.planes[tpos * 2 + 1] != displayedPlanes[tpos * 2 + 1]) {
+				// an empty tile, a resident one, or one which would need uploading again
+				placementBytes += screen.slots[tpos] == 0 ? 1 : allocator.isPinned(screen.globalIds[tpos]) ? 2 : 4;
+			}
+		}
+		// replaying takes three bytes, against the placements it saves (skips aside)
+		if (placementBytes <= 3) {
+			return;
+		}
+		writeScreenCacheCommand(0x02, slot);
+		for (int tpos = 0; tpos < displayedTiles.length; tpos++) {
+			int allocId = allocator.acquire(screen.globalIds[tpos]);
+			if (allocId != screen.slots[tpos]) {
+				throw new IllegalStateException("Cached screen tile " + screen.globalIds[tpos] + " is no longer in slot " + screen.slots[tpos]);
+			}
+			allocator.release(displayedTiles[tpos]);
+			displayedTiles[tpos] = allocId;
+			displayedGlobalIds[tpos] = screen.globalIds[tpos];
+		}
+		System.arraycopy(screen.planes, 0, displayedPlanes, 0, displayedPlanes.length);
+		for (int i = 0; i < pendingTiles.length; i++) {
+			pendingTiles[i] |= screen.pending[i];
+		}
+		replayedFrames++;
+	}
+
+	private void saveScreen(int slot) throws IOException {
+		writeScreenCacheCommand(0x01, slot);
+		int[] slots = new int[displayedTiles.length];
+		for (int tpos = 0; tpos < slots.length; tpos++) {
+			slots[tpos] = allocator.acquire(displayedGlobalIds[tpos]);
+		}
+		cachedScreens[slot] = new CachedScreen(slots, displayedGlobalIds.clone(), displayedPlanes.clone(), pendingTiles.clone());
+	}
+
+	private void freeScreen(int slot) {
+		CachedScreen screen = cachedScreens[slot];
+		if (screen != null) {
+			for (int allocId : screen.slots) {
+				allocator.release(allocId);
+			}
+			cachedScreens[slot] = null;
 		}
 	}
 
+	/**
+	 * @return The command stream, if it is kept in memory (see {@link #setCommandSink(CommandSink)}).
+	 */
 	public byte[] getCommandStream() throws IOException {
 		cmdOut.flush();
-		return cmdOutBytes.toByteArray();
+		return commandSink.toByteArray();
 	}
 
-	private int getTileStorageSize(QuantizedImage img) {
-		return img.getSteps() == 4 ? 16 : 8;
+	public int getCommandStreamSize() {
+		return commandSink.size();
 	}
 
-	private int allocateAllocationIdForTile(int globalId) throws IOException {
-		globalId &= ID_MASK;
-		int allocationId = tileGlobalIdToAllocationId.getOrDefault(globalId, -1);
-		if (allocationId < 0) {
-			for (int i = 0; i < tileAllocation.length; i++) {
-				int ii = (lastTileAllocationId + i) % tileAllocation.length;
-				if (ii == 0) continue;
-				if (!currentlyDisplayedTiles.contains(ii)) {
-					if (tileGlobalIdToAllocationId.get(tileAllocation[ii]) == ii) {
-						tileGlobalIdToAllocationId.remove(tileAllocation[ii]);
-					}
-					tileAllocation[ii] = globalId;
-					tileGlobalIdToAllocationId.put(globalId, ii);
-					lastTileAllocationId = ii + 1;
-					allocationId = ii | 0x1000;
+	public int getGlobalTileCount() {
+		return globalTiles.size() >> 1;
+	}
+
+	private int getTileStorageSize() {
+		return steps == 4 ? 16 : 8;
+	}
+
+	private int addGlobalTile(long p0, long p1) {
+		int id = globalTiles.size() >> 1;
+		globalTiles.add(p0);
+		globalTiles.add(p1);
+		int transform = PackedTile.canonicalize(p0, p1, invertMask0, invertMask1, canonicalTile, 0);
+		tileToGlobalId.put(canonicalTile[0], canonicalTile[1], id | (transform << TRANSFORM_SHIFT));
+		tileIndex.add(p0, p1, id);
+		globalTilesEstimatedSize += getTileStorageSize();
+		return id;
+	}
 
+	/**
+	 * @return The global tile id, with the transform which maps it to the given tile, or -1 if there is none.
+	 */
+	private int findGlobalTile(long p0, long p1) {
+		int transform = PackedTile.canonicalize(p0, p1, invertMask0, invertMask1, canonicalTile, 0);
+		int id = tileToGlobalId.get(canonicalTile[0], canonicalTile[1], -1);
+		// both transforms lead to the canonical form, and undo themselves
+		return id < 0 ? id : id ^ (transform << TRANSFORM_SHIFT);
+	}
+
+	/**
+	 * As {@link #findGlobalTile(long, long)}, going through the analyzer's dictionary key first if there is one.
+	 */
+	private int findGlobalTile(long p0, long p1, int key) {
+		if (key < 0) {
+			return findGlobalTile(p0, p1);
+		}
+		int keyId = key & ID_MASK;
+		int keyTransform = (key >>> TRANSFORM_SHIFT) << TRANSFORM_SHIFT;
+		if (keyId < keyToGlobalId.size() && keyToGlobalId.getInt(keyId) >= 0) {
+			return keyToGlobalId.getInt(keyId) ^ keyTransform;
+		}
+		int id = findGlobalTile(p0, p1);
+		if (id >= 0) {
+			rememberKey(key, id);
+		}
+		return id;
+	}
+
+	private void rememberKey(int key, int id) {
+		int keyId = key & ID_MASK;
+		while (keyToGlobalId.size() <= keyId) {
+			keyToGlobalId.add(-1);
+		}
+		keyToGlobalId.set(keyId, id ^ ((key >>> TRANSFORM_SHIFT) << TRANSFORM_SHIFT));
+	}
+
+	private int findNearGlobalTile(long p0, long p1) {
+		int bestId = -1;
+		int bestDistance = maxTileDistance;
+		for (int t = 0; t < PackedTile.TRANSFORM_COUNT; t++) {
+			// the transforms are involutions, so if t(tile) is near a global tile, tile is near t(global tile)
+			int id = tileIndex.findNearest(
+					PackedTile.transform(p0, t, invertMask0),
+					PackedTile.transform(p1, t, invertMask1),
+					bestDistance
+			);
+			if (id >= 0) {
+				bestId = id | (t << TRANSFORM_SHIFT);
+				bestDistance = tileIndex.getLastDistance() - 1;
+				if (bestDistance < 0) {
 					break;
 				}
 			}
-			if (allocationId < 0) {
-				throw new RuntimeException("!?");
-			}
 		}
-		currentlyDisplayedTiles.add(allocationId & 0xFFF);
-		return allocationId;
+		return bestId;
 	}
 
 	public void finish() throws IOException {
+		beginCommand(1);
 		cmdOut.writeByte(0xF0);
 	}
 
 	public void toggleBorder() throws IOException {
-		if (lastBorderBlack) {
-			lastBorderBlack = false;
-			cmdOut.writeByte(0xF6);
+		setBorderBlack(!lastBorderBlack);
+	}
+
+	public void setBorderBlack(boolean black) throws IOException {
+		if (black != lastBorderBlack) {
+			lastBorderBlack = black;
+			beginCommand(1);
+			cmdOut.writeByte(black ? 0xF7 : 0xF6);
+		}
+	}
+
+	private boolean isOverBudget(int candidates) {
+		int uploads = 0;
+		int bytes = 0;
+		budgetUploads.clear();
+		for (int i = 0; i < candidates; i++) {
+			int id = candId[i];
+			if (id < 0 || (!allocator.isPinned(id & ID_MASK) && budgetUploads.add(id & ID_MASK))) {
+				uploads++;
+				bytes += 4;
+			} else {
+				bytes += 2;
+			}
+		}
+		// one skip byte per tile, at most
+		bytes += candidates;
+		return (maxUploadsPerFrame > 0 && uploads > maxUploadsPerFrame)
+				|| (maxCommandBytesPerFrame > 0 && bytes + FRAME_OVERHEAD_BYTES + (commandSink.size() - frameStartSize) > maxCommandBytesPerFrame);
+	}
+
+	private void selectWithinBudget(int candidates) {
+		int[] order = new int[candidates];
+		for (int i = 0; i < candidates; i++) {
+			order[i] = i;
+		}
+		IntArrays.stableSort(order, (a, b) -> Long.compare(candPriority[b], candPriority[a]));
+
+		int uploads = 0;
+		int bytes = FRAME_OVERHEAD_BYTES + (commandSink.size() - frameStartSize);
+		budgetUploads.clear();
+		for (int i : order) {
+			int id = candId[i];
+			boolean upload = id < 0 || (!allocator.isPinned(id & ID_MASK) && !budgetUploads.contains(id & ID_MASK));
+			int tileBytes = (upload ? 4 : 2) + 1;
+			if ((upload && maxUploadsPerFrame > 0 && uploads + 1 > maxUploadsPerFrame)
+					|| (maxCommandBytesPerFrame > 0 && bytes + tileBytes > maxCommandBytesPerFrame)) {
+				candSelected[i] = false;
+				continue;
+			}
+			if (upload) {
+				uploads++;
+				if (id >= 0) {
+					budgetUploads.add(id & ID_MASK);
+				}
+			}
+			bytes += tileBytes;
+			candSelected[i] = true;
+		}
+	}
+
+	private void writeSkip(int from, int to) throws IOException {
+		while (to > from) {
+			int skip = Math.min(to - from, 127);
+			beginCommand(1);
+			cmdOut.writeByte(skip);
+			from += skip;
+		}
+	}
+
+	private void writePlacement(int i) throws IOException {
+		int tileData = placeTileData[i];
+		if ((tileData & 0x1FF) == 0) {
+			beginCommand(1);
+			cmdOut.writeByte(((tileData & (1 << 9)) != 0) ? 0xF5 : 0xF4);
+		} else if (placeUpload[i] >= 0) {
+			// global_id needs 18 bits, tile_data needs 12 bits
+			beginCommand(4);
+			cmdOut.writeInt(0x80000000 | (tileData << 18) | placeUpload[i]);
 		} else {
-			lastBorderBlack = true;
-			cmdOut.writeByte(0xF7);
+			beginCommand(2);
+			cmdOut.writeShort(0xE000 | tileData);
 		}
 	}
 
-	public void addImage(QuantizedImage img) throws IOException {
-		currentlyDisplayedTiles.clear();
-		for (int x : displayedTiles) {
-			currentlyDisplayedTiles.add(x);
+	private int getPlacementLength(int i) {
+		return (placeTileData[i] & 0x1FF) == 0 ? 1 : placeUpload[i] >= 0 ? 4 : 2;
+	}
+
+	/**
+	 * Write a frame's placements, picking the shortest mix of single placements and runs.
+	 * A run covers adjacent positions placing already uploaded tiles, either with the same tile data (0xC0)
+	 * or with consecutive slots (0xD0).
+	 */
+	private void writePlacements(int count) throws IOException {
+		// runCost[i] = the fewest bytes needed for placements i onwards, skips aside (which runs do not change)
+		runCost[count] = 0;
+		for (int i = count - 1; i >= 0; i--) {
+			runCost[i] = getPlacementLength(i) + runCost[i + 1];
+			runLength[i] = 1;
+			if (placeUpload[i] >= 0) {
+				continue;
+			}
+			boolean same = true, consecutive = true;
+			for (int k = 2; k <= MAX_RUN_LENGTH && i + k <= count; k++) {
+				int j = i + k - 1;
+				if (placeScrpos[j] != placeScrpos[i] + k - 1 || placeUpload[j] >= 0) {
+					break;
+				}
+				same &= placeTileData[j] == placeTileData[i];
+				consecutive &= placeTileData[j] == placeTileData[j - 1] + 1 && (placeTileData[j - 1] & 0x1FF) != 0x1FF;
+				if (!same && !consecutive) {
+					break;
+				}
+				if (3 + runCost[i + k] < runCost[i]) {
+					runCost[i] = 3 + runCost[i + k];
+					runLength[i] = same ? k : -k;
+				}
+			}
 		}
 
-		int scrpos = 0;
-		int tpos = 0;
 		int nextScrpos = 0;
+		for (int i = 0; i < count; ) {
+			writeSkip(nextScrpos, placeScrpos[i]);
+			int length = runLength[i];
+			if (length == 1) {
+				writePlacement(i);
+				i++;
+			} else {
+				int k = Math.abs(length);
+				beginCommand(3);
+				cmdOut.writeByte((length > 0 ? 0xC0 : 0xD0) | (k - 2));
+				cmdOut.writeShort(placeTileData[i]);
+				i += k;
+			}
+			nextScrpos = placeScrpos[i - 1] + 1;
+		}
+	}
 
-		for (int ty = 0; ty < this.tileHeight; ty++, scrpos += 8) {
-			for (int tx = 0; tx < this.tileWidth; tx++, scrpos++, tpos++) {
-				QuantizedImage lastTile = lastImage.subview(tx * 8, ty * 8, 8, 8);
-				QuantizedImage tile = img.subview(tx * 8, ty * 8, 8, 8);
-				if (!Objects.equals(tile, lastTile)) {
-					int id = tileToGlobalId.getOrDefault(tile, -1);
-					if (id < 0) {
-						id = globalTiles.size();
-						globalTiles.add(tile);
-						tileToGlobalId.put(tile, id);
-						tileToGlobalId.putIfAbsent(tile.flipHorizontal(), id | FLIP_H);
-						tileToGlobalId.putIfAbsent(tile.flipVertical(), id | FLIP_V);
-						tileToGlobalId.putIfAbsent(tile.flipHorizontal().flipVertical(), id | FLIP_H | FLIP_V);
-						tileToGlobalId.putIfAbsent(tile.invert(), id | INVERT);
-						tileToGlobalId.putIfAbsent(tile.flipHorizontal().invert(), id | FLIP_H | INVERT);
-						tileToGlobalId.putIfAbsent(tile.flipVertical().invert(), id | FLIP_V | INVERT);
-						tileToGlobalId.putIfAbsent(tile.flipHorizontal().flipVertical().invert(), id | FLIP_H | FLIP_V | INVERT);
-						globalTilesEstimatedSize += getTileStorageSize(tile);
-					}
-					int allocId = allocateAllocationIdForTile(id);
-					boolean allocNew = (allocId & 0x1000) != 0;
-					allocId &= 0xFFF;
-					displayedTiles[tpos] = allocId;
-
-					// bank padding
-					if ((cmdOutBytes.size() & 0xFFFF) >= 0xFFFA) {
-						while ((cmdOutBytes.size() & 0xFFFF) != 0) {
-							cmdOut.writeByte(0xF1);
-						}
-					}
+	private void writePlacementsLegacy(int count) throws IOException {
+		int nextScrpos = 0;
+		for (int i = 0; i < count; i++) {
+			// bank padding
+			if ((commandSink.size() & 0xFFFF) >= 0xFFFA) {
+				padBank();
+			}
+			writeSkip(nextScrpos, placeScrpos[i]);
+			writePlacement(i);
+			nextScrpos = placeScrpos[i] + 1;
+		}
+	}
 
-					int tileData = allocId;
-					if ((id & FLIP_V) != 0) {
-						tileData |= (1 << 11);
-					}
-					if ((id & FLIP_H) != 0) {
-						tileData |= (1 << 10);
-					}
-					if ((id & INVERT) != 0) {
-						tileData |= (1 << 9);
-					}
-					int idMasked = id & ID_MASK;
-
-					while (scrpos > nextScrpos) {
-						if ((scrpos - nextScrpos) > 127) {
-							cmdOut.writeByte(127);
-							nextScrpos += 127;
-//							cmdOut.writeByte(0xF2 | ((tpos - nextTpos) >> 8));
-//							cmdOut.writeByte((tpos - nextTpos) & 0xFF);
-//							nextTpos += (tpos - nextTpos);
-						} else {
-							cmdOut.writeByte(scrpos - nextScrpos);
-							nextScrpos += (scrpos - nextScrpos);
-						}
-					}
+	public void addImage(QuantizedImage img) throws IOException {
+		addImage(img, null);
+	}
+
+	/**
+	 * @param frameTiles The tiles changed by this frame, as found by a {@link ShardedTileAnalyzer}
+	 *                   using the same tile remap, or null to find them here.
+	 */
+	public void addImage(QuantizedImage img, FrameTiles frameTiles) throws IOException {
+		long startNanos = packTimer != null ? System.nanoTime() : 0;
+		int uploadsBefore = allocator.getUploads();
+		int frame = frameIndex++;
 
-					// global_id needs 17 bits
-					// tile_data needs 12 bits
-
-					if (allocId == 0) {
-						// 0xC - 0xD
-						cmdOut.writeByte(((id & INVERT) != 0) ? 0xF5 : 0xF4);
-					} else if (allocNew) {
-						// 0x8 - 0xB
-						cmdOut.writeInt(0x80000000 | (tileData << 18) | idMasked);
-					} else {
-						// 0xE
-						cmdOut.writeShort(0xE000 | tileData);
+		if (screenCachePlan != null && screenCachePlan.getReplaySlot(frame) >= 0) {
+			replayScreen(screenCachePlan.getReplaySlot(frame));
+		}
+
+		if (frameTiles == null) {
+			FrameDiff.compute(lastImage, img, tileWidth, tileHeight, diffScratch, dirtyTiles);
+		}
+
+		// gather tiles which differ from what is on screen
+		int candidates = 0;
+		int nextFrameTile = 0;
+		for (int tpos = 0; tpos < this.tileWidth * this.tileHeight; tpos++) {
+			boolean dirty = frameTiles != null
+					? nextFrameTile < frameTiles.count && frameTiles.positions[nextFrameTile] == tpos
+					: FrameDiff.isDirty(dirtyTiles, tpos);
+			if (dirty || FrameDiff.isDirty(pendingTiles, tpos)) {
+				int key = -1;
+				if (dirty && frameTiles != null) {
+					currTile[0] = frameTiles.tiles[nextFrameTile * 2];
+					currTile[1] = frameTiles.tiles[nextFrameTile * 2 + 1];
+					key = frameTiles.keys[nextFrameTile++];
+				} else {
+					PackedTile.pack(img, (tpos % tileWidth) * 8, (tpos / tileWidth) * 8, currTile, 0);
+					if (tileRemap != null) {
+						tileRemap.apply(currTile, 0);
 					}
-					nextScrpos = scrpos + 1;
 				}
+				int error = PackedTile.distance(displayedPlanes[tpos * 2], displayedPlanes[tpos * 2 + 1], currTile[0], currTile[1]);
+				if (error == 0) {
+					pendingTiles[tpos >> 6] &= ~(1L << tpos);
+					deferredFrames[tpos] = 0;
+					continue;
+				}
+				candPos[candidates] = tpos;
+				candTiles[candidates * 2] = currTile[0];
+				candTiles[candidates * 2 + 1] = currTile[1];
+				candKey[candidates] = key;
+				candId[candidates] = findGlobalTile(currTile[0], currTile[1], key);
+				candError[candidates] = error;
+				candPriority[candidates] = (long) error * (deferredFrames[tpos] + 1);
+				candSelected[candidates] = true;
+				candidates++;
 			}
 		}
 
-		// calculate new border color
-		/* float borderColor = 0;
-		for (int iy = 0; iy < tileHeight * 8; iy++) {
-			borderColor += img.get(0, iy) >= (steps >> 1) ? 1 : 0;
-			borderColor += img.get(img.getWidth() - 1, iy) >= (steps >> 1) ? 1 : 0;
+		if ((maxUploadsPerFrame > 0 || maxCommandBytesPerFrame > 0) && isOverBudget(candidates)) {
+			selectWithinBudget(candidates);
+		}
+
+		int placements = 0;
+		int placedTiles = 0;
+		int deferredTiles = 0;
+		int deferredError = 0;
+
+		for (int i = 0; i < candidates; i++) {
+			int tpos = candPos[i];
+			if (!candSelected[i]) {
+				pendingTiles[tpos >> 6] |= 1L << tpos;
+				deferredFrames[tpos]++;
+				deferredTiles++;
+				deferredError += candError[i];
+				continue;
+			}
+			pendingTiles[tpos >> 6] &= ~(1L << tpos);
+			deferredFrames[tpos] = 0;
+			placedTiles++;
+
+			int scrpos = (tpos / tileWidth) * SCREEN_WIDTH + (tpos % tileWidth);
+			long p0 = candTiles[i * 2];
+			long p1 = candTiles[i * 2 + 1];
+			int id = candId[i];
+			if (id < 0) {
+				// an identical tile may have been added earlier in this frame
+				id = findGlobalTile(p0, p1, candKey[i]);
+			}
+			if (id < 0 && maxTileDistance > 0) {
+				id = findNearGlobalTile(p0, p1);
+				if (id >= 0) {
+					lossyMatches++;
+				}
+			}
+			if (id < 0) {
+				id = addGlobalTile(p0, p1);
+				if (candKey[i] >= 0) {
+					rememberKey(candKey[i], id);
+				}
+			}
+			int allocId = allocator.acquire(id & ID_MASK);
+			boolean allocNew = (allocId & TileAllocator.NEW) != 0;
+			allocId &= 0xFFF;
+			allocator.release(displayedTiles[tpos]);
+			displayedTiles[tpos] = allocId;
+			displayedGlobalIds[tpos] = id & ID_MASK;
+			int transform = id >>> TRANSFORM_SHIFT;
+			displayedPlanes[tpos * 2] = PackedTile.transform(globalTiles.getLong((id & ID_MASK) * 2), transform, invertMask0);
+			displayedPlanes[tpos * 2 + 1] = PackedTile.transform(globalTiles.getLong((id & ID_MASK) * 2 + 1), transform, invertMask1);
+
+			int tileData = allocId;
+			if ((id & FLIP_V) != 0) {
+				tileData |= (1 << 11);
+			}
+			if ((id & FLIP_H) != 0) {
+				tileData |= (1 << 10);
+			}
+			if ((id & INVERT) != 0) {
+				tileData |= (1 << 9);
+			}
+			placeScrpos[placements] = scrpos;
+			placeTileData[placements] = tileData;
+			placeUpload[placements] = allocNew ? (id & ID_MASK) : -1;
+			placements++;
+		}
+
+		if (commandVersion == COMMAND_VERSION_LEGACY) {
+			writePlacementsLegacy(placements);
+		} else {
+			writePlacements(placements);
+		}
+
+		if (screenCachePlan != null) {
+			if (screenCachePlan.getFreeSlot(frame) >= 0) {
+				freeScreen(screenCachePlan.getFreeSlot(frame));
+			}
+			if (screenCachePlan.getSaveSlot(frame) >= 0) {
+				saveScreen(screenCachePlan.getSaveSlot(frame));
+			}
 		}
-		borderColor /= (tileHeight * 8 * 2);
-		if (lastBorderBlack && borderColor > 0.8f) {
-			lastBorderBlack = false;
-			cmdOut.writeByte(0xF6);
-		} else if (!lastBorderBlack && borderColor < 0.2f) {
-			lastBorderBlack = true;
-			cmdOut.writeByte(0xF7);
-		} */
 
 		int vblsThisFrame = (int) (vblsCounter + vblsPerFrame);
 		vblsCounter += (vblsPerFrame - vblsThisFrame);
-		cmdOut.writeByte(0xF8 + vblsThisFrame);
+		endFrame(vblsThisFrame);
 
+		allocator.endFrame();
+		int frameUploads = allocator.getUploads() - uploadsBefore;
+		int frameBytes = commandSink.size() - frameStartSize;
+		frameStats.add(placedTiles, frameUploads, frameBytes, deferredTiles, deferredError);
+		frameStartSize = commandSink.size();
 		this.lastImage = img;
-		System.out.println(globalTiles.size() + " tiles; " + globalTilesEstimatedSize + " + " + cmdOutBytes.size() + " bytes");
+		if (packTimer != null) {
+			uploadsPerFrame.record(frameUploads);
+			commandBytesPerFrame.record(frameBytes);
+			framesPacked.increment();
+			packTimer.recordSince(startNanos);
+		}
 	}
 }
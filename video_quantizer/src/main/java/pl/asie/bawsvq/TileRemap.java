@@ -0,0 +1,45 @@
+package pl.asie.bawsvq;
+
+/**
+ * Maps tiles onto a smaller tile set, as built by {@link TileClusterer}. Tiles it was not built from are left as-is.
+ */
+public class TileRemap {
+	private final TileMap assignments;
+	private final long[] centers;
+	private final long invertMask0, invertMask1;
+
+	/**
+	 * @param assignments Maps canonical tiles to (center index | (transform << 24)), where the transform maps the
+	 *                    center to its approximation of the canonical tile.
+	 * @param centers The tile set, two planes per tile.
+	 */
+	TileRemap(TileMap assignments, long[] centers, int steps) {
+		this.assignments = assignments;
+		this.centers = centers;
+		this.invertMask0 = PackedTile.invertMask(steps, 0);
+		this.invertMask1 = PackedTile.invertMask(steps, 1);
+	}
+
+	public int getTileCount() {
+		return centers.length >> 1;
+	}
+
+	/**
+	 * Replace a tile in place with its approximation from the tile set.
+	 *
+	 * @return Whether the tile was known.
+	 */
+	public boolean apply(long[] tile, int offset) {
+		long[] canonical = new long[2];
+		int transform = PackedTile.canonicalize(tile[offset], tile[offset + 1], invertMask0, invertMask1, canonical, 0);
+		int assignment = assignments.get(canonical[0], canonical[1], -1);
+		if (assignment < 0) {
+			return false;
+		}
+		int center = assignment & 0xFFFFFF;
+		transform ^= assignment >>> 24;
+		tile[offset] = PackedTile.transform(centers[center * 2], transform, invertMask0);
+		tile[offset + 1] = PackedTile.transform(centers[center * 2 + 1], transform, invertMask1);
+		return true;
+	}
+}
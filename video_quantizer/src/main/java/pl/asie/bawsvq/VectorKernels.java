@@ -0,0 +1,180 @@
+package pl.asie.bawsvq;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteOrder;
+
+/**
+ * Vector API implementation of {@link PixelKernels}. Only loaded reflectively, as the module may not be present.
+ * Every operation mirrors the scalar implementation exactly, including the order of floating point additions.
+ */
+final class VectorKernels extends PixelKernels {
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Byte> FLOAT_BYTES;
+
+	static {
+		if (FLOATS.length() < 8) {
+			throw new UnsupportedOperationException("Too few vector lanes: " + FLOATS.length());
+		}
+		FLOAT_BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(FLOATS.length() * 8));
+	}
+
+	@Override
+	public String getName() {
+		return "vector (" + FLOATS.vectorBitSize() + "-bit)";
+	}
+
+	@Override
+	public void gray(int[] pixels, int srcOffset, float[] dest, int destOffset, int length) {
+		int upper = INTS.loopBound(length);
+		int i = 0;
+		for (; i < upper; i += INTS.length()) {
+			IntVector green = IntVector.fromArray(INTS, pixels, srcOffset + i)
+					.lanewise(VectorOperators.ASHR, 8)
+					.and(0xFC);
+			FloatVector v = ((FloatVector) green.convert(VectorOperators.I2F, 0)).div(252.0f);
+			FloatVector g = v.sub(0.1f).mul(1f/0.8f);
+			g = g.blend(0.0f, v.compare(VectorOperators.LT, 0.1f));
+			g = g.blend(1.0f, v.compare(VectorOperators.GT, 0.9f));
+			g.intoArray(dest, destOffset + i);
+		}
+		ScalarKernels.INSTANCE.gray(pixels, srcOffset + i, dest, destOffset + i, length - i);
+	}
+
+	@Override
+	public void gray(byte[] samples, int srcOffset, float[] dest, int destOffset, int length) {
+		// a table lookup per sample is as fast as widening and converting them
+		ScalarKernels.INSTANCE.gray(samples, srcOffset, dest, destOffset, length);
+	}
+
+	private static FloatVector load(float[] a, int i) {
+		return FloatVector.fromArray(FLOATS, a, i);
+	}
+
+	@Override
+	void laplacianRow(QuantizerWorkspace ws, int pUp, int p, int pDown, int l) {
+		float[] g = ws.gray;
+		int upper = FLOATS.loopBound(ws.width);
+		int ix = 0;
+		for (; ix < upper; ix += FLOATS.length()) {
+			load(g, pUp + ix)
+					.add(load(g, pDown + ix))
+					.add(load(g, p + ix - 1))
+					.add(load(g, p + ix + 1))
+					.sub(load(g, p + ix).mul(4.0f))
+					.intoArray(ws.laplacian, l + ix);
+		}
+		ScalarKernels.laplacianRange(ws, pUp, p, pDown, l, ix, ws.width);
+	}
+
+	@Override
+	void rowWindows(QuantizerWorkspace ws, int p, int l, int o) {
+		float[] g = ws.gray;
+		float[] lap = ws.laplacian;
+		int upper = FLOATS.loopBound(ws.width);
+		int ix = 0;
+		for (; ix < upper; ix += FLOATS.length()) {
+			int pi = p + ix, li = l + ix, oi = o + ix;
+			FloatVector a = load(g, pi - 2), b = load(g, pi - 1), c = load(g, pi), d = load(g, pi + 1), e = load(g, pi + 2);
+			FloatVector max3 = b.max(c.max(d));
+			FloatVector min3 = b.min(c.min(d));
+			FloatVector sum3 = b.add(c).add(d);
+			max3.intoArray(ws.rowMax3, oi);
+			max3.max(a.max(e)).intoArray(ws.rowMax5, oi);
+			min3.intoArray(ws.rowMin3, oi);
+			min3.min(a.min(e)).intoArray(ws.rowMin5, oi);
+			sum3.intoArray(ws.rowSum3, oi);
+			sum3.add(a).add(e).intoArray(ws.rowSum5, oi);
+
+			FloatVector lmax3 = load(lap, li - 1).max(load(lap, li).max(load(lap, li + 1)));
+			lmax3.intoArray(ws.lapMax3, oi);
+			lmax3.max(load(lap, li - 2).max(load(lap, li + 2))).intoArray(ws.lapMax5, oi);
+		}
+		ScalarKernels.rowWindowsRange(ws, p, l, o, ix, ws.width);
+	}
+
+	private static FloatVector enhance(QuantizerWorkspace ws, int c, FloatVector grayValue) {
+		int w = ws.width;
+		int w2 = w * 2;
+		FloatVector pMaxValue = load(ws.rowMax5, c - w).max(load(ws.rowMax5, c).max(load(ws.rowMax5, c + w)))
+				.max(load(ws.rowMax3, c - w2).max(load(ws.rowMax3, c + w2)));
+		FloatVector pMinValue = load(ws.rowMin5, c - w).min(load(ws.rowMin5, c).min(load(ws.rowMin5, c + w)))
+				.min(load(ws.rowMin3, c - w2).min(load(ws.rowMin3, c + w2)));
+		FloatVector sum5x3 = load(ws.rowSum5, c - w).add(load(ws.rowSum5, c)).add(load(ws.rowSum5, c + w));
+		FloatVector pAvgValue = sum5x3.add(load(ws.rowSum3, c - w2)).add(load(ws.rowSum3, c + w2)).div(21.0f);
+		FloatVector maxValue = load(ws.lapMax5, c - w).max(load(ws.lapMax5, c).max(load(ws.lapMax5, c + w)))
+				.max(load(ws.lapMax3, c - w2).max(load(ws.lapMax3, c + w2)));
+
+		FloatVector edgeValue = pMinValue.blend(pMaxValue, grayValue.compare(VectorOperators.GE, pAvgValue));
+		return grayValue.blend(edgeValue, maxValue.compare(VectorOperators.GE, 0.5f));
+	}
+
+	@Override
+	void toneRow(QuantizerWorkspace ws, int o, int p, float[] tones, int tonesOffset) {
+		int upper = FLOATS.loopBound(ws.width);
+		int ix = 0;
+		for (; ix < upper; ix += FLOATS.length()) {
+			enhance(ws, o + ix, load(ws.gray, p + ix)).intoArray(tones, tonesOffset + ix);
+		}
+		ScalarKernels.toneRange(ws, o, p, tones, tonesOffset, ix, ws.width);
+	}
+
+	@Override
+	void quantizeRow(QuantizerWorkspace ws, int o, int p, float[] ratios, int steps, byte[] data, int dataOffset) {
+		int w = ws.width;
+		int upper = FLOATS.loopBound(w);
+		int ix = 0;
+		for (; ix < upper; ix += FLOATS.length()) {
+			FloatVector grayValue = enhance(ws, o + ix, load(ws.gray, p + ix));
+
+			FloatVector result;
+			if (ratios != null) {
+				FloatVector steppedValue = grayValue.mul(steps - 1);
+				FloatVector svMin = (FloatVector) steppedValue.convert(VectorOperators.F2I, 0).convert(VectorOperators.I2F, 0);
+				VectorMask<Float> up = steppedValue.compare(VectorOperators.GT, svMin)
+						.and(steppedValue.compare(VectorOperators.GE, svMin.add(load(ratios, ix))));
+				result = svMin.add(1.0f, up);
+			} else {
+				result = grayValue.mul(steps);
+			}
+			((ByteVector) result.convertShape(VectorOperators.F2B, FLOAT_BYTES, 0)).intoArray(data, dataOffset + ix);
+		}
+		ScalarKernels.quantizeRange(ws, o, p, ratios, steps, data, dataOffset, ix, w);
+	}
+
+	@Override
+	public void invert(byte[] src, byte[] dest, int steps) {
+		int upper = BYTES.loopBound(src.length);
+		int i = 0;
+		ByteVector max = ByteVector.broadcast(BYTES, (byte) (steps - 1));
+		for (; i < upper; i += BYTES.length()) {
+			max.sub(ByteVector.fromArray(BYTES, src, i)).intoArray(dest, i);
+		}
+		for (; i < src.length; i++) {
+			dest[i] = (byte) (steps - 1 - src[i]);
+		}
+	}
+
+	@Override
+	public void diffRow(byte[] a, byte[] b, int offset, long[] accum, int tileWidth) {
+		int upper = LONGS.loopBound(tileWidth);
+		int tx = 0;
+		for (; tx < upper; tx += LONGS.length()) {
+			int i = offset + tx * 8;
+			LongVector va = LongVector.fromByteArray(LONGS, a, i, ByteOrder.nativeOrder());
+			LongVector vb = LongVector.fromByteArray(LONGS, b, i, ByteOrder.nativeOrder());
+			LongVector.fromArray(LONGS, accum, tx).or(va.lanewise(VectorOperators.XOR, vb)).intoArray(accum, tx);
+		}
+		ScalarKernels.diffRange(a, b, offset, accum, tx, tileWidth);
+	}
+}
@@ -0,0 +1,242 @@
+package pl.asie.bawsvq;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Encodes synthetic clips and decodes them again with {@link DecoderModel}, checking that every vblank shows
+ * the input frame due at that time, with its border.
+ */
+public class CommandStreamTest {
+	private static final int TILE_WIDTH = 24, TILE_HEIGHT = 18;
+	private static final double VBLS_PER_FRAME = DecodeSimulator.VBLANKS_PER_SECOND / 30;
+	private static final int POOL_SIZE = 600;
+
+	private record Clip(int tileWidth, int tileHeight, List<QuantizedImage> frames, boolean[] borderBlack) {
+	}
+
+	private record Encoded(byte[] commands, byte[] tiles, TileAllocator allocator) {
+	}
+
+	private static void drawTile(byte[] data, int tileWidth, int tpos, long p0, long p1) {
+		int width = tileWidth * 8;
+		int offset = (tpos / tileWidth) * 8 * width + (tpos % tileWidth) * 8;
+		for (int iy = 0; iy < 8; iy++) {
+			for (int ix = 0; ix < 8; ix++) {
+				data[offset + iy * width + ix] = (byte) PackedTile.get(p0, p1, ix, iy);
+			}
+		}
+	}
+
+	/**
+	 * A static background of a few tiles, around a window which changes a few tiles a frame. The tiles come from
+	 * a pool large enough to have slots evicted, under random transforms, and now and then fill a row in pool order,
+	 * which uploads them to consecutive slots. Some frames repeat the previous one or an earlier one, and the border
+	 * changes now and then.
+	 */
+	private static Clip createClip(int frameCount, int windowWidth, int windowHeight, long seed) {
+		Random random = new Random(seed);
+		long[] pool = new long[POOL_SIZE * 2];
+		for (int i = 0; i < pool.length; i++) {
+			pool[i] = random.nextLong();
+		}
+		int windowX = (TILE_WIDTH - windowWidth) / 2, windowY = (TILE_HEIGHT - windowHeight) / 2;
+		byte[] data = new byte[TILE_WIDTH * TILE_HEIGHT * 64];
+		for (int tpos = 0; tpos < TILE_WIDTH * TILE_HEIGHT; tpos++) {
+			// a solid row, then a pattern of three tiles
+			int tile = tpos / TILE_WIDTH == 0 ? -1 : tpos % 3;
+			drawTile(data, TILE_WIDTH, tpos, tile < 0 ? -1L : pool[tile * 2], tile < 0 ? 0L : pool[tile * 2 + 1]);
+		}
+
+		List<QuantizedImage> frames = new ArrayList<>();
+		boolean[] borderBlack = new boolean[frameCount];
+		boolean black = true;
+		for (int i = 0; i < frameCount; i++) {
+			int event = i == 0 ? -1 : random.nextInt(10);
+			if (event == 1 && i > 8) {
+				data = frames.get(i - 2 - random.nextInt(6)).getData().clone();
+			} else if (event == 2) {
+				int row = windowY + random.nextInt(windowHeight);
+				int first = random.nextInt(POOL_SIZE - windowWidth);
+				for (int x = 0; x < windowWidth; x++) {
+					drawTile(data, TILE_WIDTH, row * TILE_WIDTH + windowX + x, pool[(first + x) * 2], pool[(first + x) * 2 + 1]);
+				}
+			} else if (event > 2) {
+				for (int changes = 1 + random.nextInt(windowWidth * windowHeight / 2); changes > 0; changes--) {
+					int tpos = (windowY + random.nextInt(windowHeight)) * TILE_WIDTH + windowX + random.nextInt(windowWidth);
+					int tile = random.nextInt(POOL_SIZE);
+					int transform = random.nextInt(PackedTile.TRANSFORM_COUNT);
+					drawTile(data, TILE_WIDTH, tpos, PackedTile.transform(pool[tile * 2], transform, -1L),
+							PackedTile.transform(pool[tile * 2 + 1], transform, -1L));
+				}
+			}
+			if (random.nextInt(20) == 0) {
+				black = !black;
+			}
+			borderBlack[i] = black;
+			frames.add(new QuantizedImage(TILE_WIDTH * 8, TILE_HEIGHT * 8, 4, data.clone()));
+		}
+		return new Clip(TILE_WIDTH, TILE_HEIGHT, frames, borderBlack);
+	}
+
+	private static Encoded encode(Clip clip, int commandVersion, ScreenCachePlan screenCachePlan, TileAllocator allocator) throws IOException {
+		TilePacker packer = new TilePacker(clip.tileWidth(), clip.tileHeight(), 4, VBLS_PER_FRAME, allocator);
+		packer.setCommandVersion(commandVersion);
+		packer.setScreenCachePlan(screenCachePlan);
+		for (int i = 0; i < clip.frames().size(); i++) {
+			packer.setBorderBlack(clip.borderBlack()[i]);
+			packer.addImage(clip.frames().get(i));
+		}
+		packer.finish();
+		ByteArrayOutputStream tiles = new ByteArrayOutputStream();
+		packer.writeTiles(tiles);
+		return new Encoded(packer.getCommandStream(), tiles.toByteArray(), allocator);
+	}
+
+	/**
+	 * Decode the clip, and compare what each vblank shows against the input frame due then.
+	 */
+	private static DecoderModel decode(Clip clip, Encoded encoded, String message) {
+		DecoderModel decoder = new DecoderModel(encoded.commands(), encoded.tiles(), clip.tileWidth(), clip.tileHeight());
+		List<DecoderModel.Frame> shown = decoder.run();
+		int decoded = 0, remaining = shown.get(0).vblanks();
+		int vblank = 0;
+		double vblsCounter = 0;
+		for (int i = 0; i < clip.frames().size(); i++) {
+			int vbls = (int) (vblsCounter + VBLS_PER_FRAME);
+			vblsCounter += VBLS_PER_FRAME - vbls;
+			byte[] expected = DecoderModel.getShades(clip.frames().get(i));
+			int border = clip.borderBlack()[i] ? DecoderModel.BORDER_BLACK : DecoderModel.BORDER_WHITE;
+			for (int v = 0; v < vbls; v++, vblank++) {
+				while (remaining == 0) {
+					if (++decoded >= shown.size()) {
+						fail(message + ": the stream ends at vblank " + vblank + ", during frame " + i);
+					}
+					remaining = shown.get(decoded).vblanks();
+				}
+				remaining--;
+				DecoderModel.Frame frame = shown.get(decoded);
+				if (!Arrays.equals(expected, frame.shades())) {
+					fail(message + ": vblank " + vblank + " shows decoded frame " + decoded + ", not frame " + i);
+				}
+				assertEquals(border, frame.border(), message + ": border at vblank " + vblank + ", frame " + i);
+			}
+		}
+		int extra = remaining;
+		for (int d = decoded + 1; d < shown.size(); d++) {
+			extra += shown.get(d).vblanks();
+		}
+		assertEquals(0, extra, message + ": vblanks shown past the last frame");
+		return decoder;
+	}
+
+	private static int countCommands(DecoderModel decoder, int first, int last) {
+		int count = 0;
+		for (int cmd = first; cmd <= last; cmd++) {
+			count += decoder.getCommandCount(cmd);
+		}
+		return count;
+	}
+
+	@Test
+	public void roundTripsLegacyAndCompact() throws IOException {
+		Clip clip = createClip(1300, 12, 8, 0x434D4453L);
+		for (int version : new int[] { TilePacker.COMMAND_VERSION_LEGACY, TilePacker.COMMAND_VERSION_COMPACT }) {
+			Encoded traced = encode(clip, version, null, TileAllocator.tracing(512));
+			assertTrue(traced.allocator().getEvictions() > 0, "no tile slots evicted");
+			DecoderModel decoder = decode(clip, traced, "version " + version);
+			assertTrue(decoder.getCommandCount(0xF1) > 0, "no bank switches");
+			if (version >= TilePacker.COMMAND_VERSION_COMPACT) {
+				assertTrue(countCommands(decoder, 0xC0, 0xCF) > 0, "no runs of identical tiles");
+				assertTrue(countCommands(decoder, 0xD0, 0xDF) > 0, "no runs of consecutive slots");
+			}
+
+			Encoded lookahead = encode(clip, version, null, TileAllocator.withLookahead(512, traced.allocator().getTrace()));
+			decode(clip, lookahead, "version " + version + ", with lookahead");
+		}
+	}
+
+	/**
+	 * Frames which change nothing lengthen the previous frame's hold, past 7 vblanks with 0xF3 0x00, and split at
+	 * 255. Screens saved to the cache are restored for repeats of earlier frames.
+	 */
+	@Test
+	public void roundTripsHoldsAndReplays() throws IOException {
+		Clip source = createClip(300, 6, 6, 0x484F4C44L);
+		// a still of 120 frames in the middle, around 300 vblanks
+		List<QuantizedImage> frames = new ArrayList<>(source.frames().subList(0, 150));
+		boolean[] borderBlack = new boolean[source.frames().size() + 120];
+		System.arraycopy(source.borderBlack(), 0, borderBlack, 0, 150);
+		for (int i = 0; i < 120; i++) {
+			frames.add(source.frames().get(149));
+			borderBlack[150 + i] = source.borderBlack()[149];
+		}
+		frames.addAll(source.frames().subList(150, 300));
+		System.arraycopy(source.borderBlack(), 150, borderBlack, 270, 150);
+		Clip clip = new Clip(source.tileWidth(), source.tileHeight(), frames, borderBlack);
+
+		ScreenCachePlan plan = ScreenCachePlan.build(frames.size(), frames::get, TilePacker.MAX_SCREEN_CACHE_SLOTS, 512 / 8);
+		assertTrue(plan.getReplayCount() > 0, "no replays planned");
+		for (ScreenCachePlan screenCachePlan : new ScreenCachePlan[] { null, plan }) {
+			String message = screenCachePlan != null ? "version 3, replaying" : "version 3";
+			Encoded traced = encode(clip, TilePacker.COMMAND_VERSION_REPLAY, screenCachePlan, TileAllocator.tracing(512));
+			DecoderModel decoder = decode(clip, traced, message);
+			assertTrue(decoder.getExtendedCount(0x00) > 0, "no holds longer than 7 vblanks");
+			// the still is longer than one hold can be, so this one is split
+			int longestHold = decoder.getFrames().stream().mapToInt(DecoderModel.Frame::vblanks).max().orElse(0);
+			assertTrue(longestHold > 255 - VBLS_PER_FRAME, "the still is not held for as long as one frame end allows");
+			if (screenCachePlan != null) {
+				assertTrue(decoder.getExtendedCount(0x01) > 0, "no screens saved");
+				assertTrue(decoder.getExtendedCount(0x02) > 0, "no screens restored");
+			}
+
+			Encoded lookahead = encode(clip, TilePacker.COMMAND_VERSION_REPLAY, screenCachePlan,
+					TileAllocator.withLookahead(512, traced.allocator().getTrace()));
+			decode(clip, lookahead, message + ", with lookahead");
+		}
+	}
+
+	/**
+	 * A 0xD0 run adds 1 to the whole tile data, so past slot 511 it would set the palette bits instead.
+	 * Each pattern here is seven new tiles and a white one, so the 73rd takes slots 505-511. Shown again after
+	 * a black frame, its tiles are all resident, and the white tile (slot 0, inverted) follows slot 511 as the next
+	 * tile data; the run must end before it.
+	 */
+	@Test
+	public void runsStopAtLastSlot() throws IOException {
+		Random random = new Random(0x534C4F54L);
+		long[] canonical = new long[2];
+		List<QuantizedImage> frames = new ArrayList<>();
+		byte[] data = new byte[8 * 64];
+		byte[] lastPattern = null;
+		for (int pattern = 0; pattern < 73; pattern++) {
+			for (int tpos = 0; tpos < 7; tpos++) {
+				// in canonical form, so that each is placed untransformed
+				PackedTile.canonicalize(random.nextLong(), random.nextLong(), -1L, -1L, canonical, 0);
+				drawTile(data, 8, tpos, canonical[0], canonical[1]);
+			}
+			drawTile(data, 8, 7, -1L, -1L);
+			lastPattern = data.clone();
+			frames.add(new QuantizedImage(64, 8, 4, lastPattern));
+		}
+		frames.add(new QuantizedImage(64, 8, 4, new byte[8 * 64]));
+		frames.add(new QuantizedImage(64, 8, 4, lastPattern));
+		boolean[] borderBlack = new boolean[frames.size()];
+		Arrays.fill(borderBlack, true);
+		Clip clip = new Clip(8, 1, frames, borderBlack);
+
+		DecoderModel decoder = decode(clip, encode(clip, TilePacker.COMMAND_VERSION_COMPACT, null, new TileAllocator(512)), "version 2");
+		assertEquals(1, decoder.getSlotWraps(), "slot 511 not followed by the next tile data");
+		assertTrue(countCommands(decoder, 0xD0, 0xDF) > 0, "no runs of consecutive slots");
+	}
+}
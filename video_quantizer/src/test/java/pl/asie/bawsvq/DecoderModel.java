@@ -0,0 +1,264 @@
+package pl.asie.bawsvq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A model of the player in src/main.c: its main loop, and {@code parse_until_next_frame} decoding a command stream
+ * into screen maps and VRAM tile slots. Each frame is recorded as the shades it shows, with its border
+ * and the vblanks it is shown for.
+ * <p>
+ * Where the decoder would silently go wrong, the model fails instead: on reading past the end of a bank,
+ * placing a tile outside the copied part of the screen map, stepping a 0xD0 run past the last slot,
+ * using a screen cache slot it does not have, showing an undefined palette, or overwriting a tile
+ * which is still on screen.
+ */
+final class DecoderModel {
+	// COMMAND_STREAM_VERSION in src/main.c
+	private static final int DECODER_VERSION = TilePacker.COMMAND_VERSION_REPLAY;
+	private static final int SCREEN_WIDTH = 32;
+	// SCREEN_COPY_BYTES in src/main.c, in words
+	private static final int SCREEN_COPY_WORDS = 32 * 17 + 24;
+	private static final int TILE_SLOTS = 512;
+	private static final int TILE_BYTES = 16;
+	private static final int PALETTE_0 = 0x7520, PALETTE_1 = 0x0257;
+	static final int BORDER_WHITE = 0, BORDER_BLACK = 7;
+
+	/**
+	 * A frame as shown, with the shade of each pixel of the video's area.
+	 */
+	record Frame(byte[] shades, int border, int vblanks) {
+	}
+
+	private final byte[] commands, tiles;
+	private final int tileWidth, tileHeight;
+	private final byte[] vram = new byte[TILE_SLOTS * TILE_BYTES];
+	private int[] currScreen = new int[SCREEN_WIDTH * SCREEN_WIDTH];
+	private int[] nextScreen = new int[SCREEN_WIDTH * SCREEN_WIDTH];
+	private final int[][] screenCache = new int[TilePacker.MAX_SCREEN_CACHE_SLOTS][SCREEN_COPY_WORDS];
+	private int nextBorder = BORDER_BLACK;
+	private int nextVblanks;
+	private int bank, position, tilePos;
+	private int lastPlacedPos, lastPlacedData;
+	private final int[] commandCounts = new int[256];
+	private final int[] extendedCounts = new int[256];
+	private int slotWraps;
+	private final List<Frame> frames = new ArrayList<>();
+
+	/**
+	 * @param commands The command stream, as in commands.bin.
+	 * @param tiles The global tiles, as in tiles.bin; 2bpp only.
+	 */
+	DecoderModel(byte[] commands, byte[] tiles, int tileWidth, int tileHeight) {
+		this.commands = commands;
+		this.tiles = tiles;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		for (int i = 0; i < TILE_BYTES; i++) {
+			vram[i] = (byte) 0xFF;
+		}
+	}
+
+	/**
+	 * Run the main loop until the end of the stream.
+	 *
+	 * @return The frames shown, starting with the blank screen shown while the first frame is decoded.
+	 */
+	List<Frame> run() {
+		while (true) {
+			// flip buffers
+			int[] tmp = currScreen;
+			currScreen = nextScreen;
+			nextScreen = tmp;
+			int border = nextBorder;
+
+			// copy curr to next
+			System.arraycopy(currScreen, 0, nextScreen, 0, SCREEN_COPY_WORDS);
+
+			// draw the next frame, while this one is shown for its own vblank count
+			int shownVblanks = nextVblanks;
+			byte[] shown = render(currScreen);
+			boolean done = parseUntilNextFrame();
+			if (!Arrays.equals(shown, render(currScreen))) {
+				throw new AssertionError("Frame " + frames.size() + " changed on screen while the next frame was drawn");
+			}
+			frames.add(new Frame(shown, border, shownVblanks));
+			if (done) {
+				return frames;
+			}
+		}
+	}
+
+	List<Frame> getFrames() {
+		return frames;
+	}
+
+	/**
+	 * @return How many times the command was read.
+	 */
+	int getCommandCount(int cmd) {
+		return commandCounts[cmd];
+	}
+
+	/**
+	 * @return How many times the 0xF3 extended command was read.
+	 */
+	int getExtendedCount(int cmd2) {
+		return extendedCounts[cmd2];
+	}
+
+	/**
+	 * @return How many times a tile in the last slot was placed, followed within the same frame
+	 * by the next tile data (slot 0, inverted) at the next position; the placements a 0xD0 run must not merge.
+	 */
+	int getSlotWraps() {
+		return slotWraps;
+	}
+
+	private int read() {
+		if (position > 0xFFFF) {
+			throw new AssertionError("Command stream runs past the end of bank " + bank);
+		}
+		int index = (bank << 16) + position++;
+		if (index >= commands.length) {
+			throw new AssertionError("Command stream runs past its end, at " + index);
+		}
+		return commands[index] & 0xFF;
+	}
+
+	private void place(int tileData) {
+		if (tilePos >= SCREEN_COPY_WORDS) {
+			throw new AssertionError("Tile placed outside the copied screen map, at " + tilePos);
+		}
+		if (tilePos == lastPlacedPos + 1 && (lastPlacedData & 0x1FF) == 0x1FF && tileData == lastPlacedData + 1) {
+			slotWraps++;
+		}
+		lastPlacedPos = tilePos;
+		lastPlacedData = tileData;
+		nextScreen[tilePos++] = tileData;
+	}
+
+	private void copyGlobalTile(int tileBank, int tileOfs, int slot) {
+		int index = (tileBank << 16) + tileOfs;
+		if (index + TILE_BYTES > tiles.length) {
+			throw new AssertionError("Global tile at " + index + " is past the end of the tiles");
+		}
+		System.arraycopy(tiles, index, vram, slot * TILE_BYTES, TILE_BYTES);
+	}
+
+	private boolean parseUntilNextFrame() {
+		tilePos = 0;
+		lastPlacedPos = -2;
+
+		while (true) {
+			int cmd = read();
+			commandCounts[cmd]++;
+			if (cmd <= 0x7F) {
+				tilePos += cmd;
+			} else if (cmd <= 0xBF) {
+				int cmd2 = read(), cmd3 = read(), cmd4 = read();
+				int globalTileBank = (cmd3 >> 4) | ((cmd2 & 0x03) << 4);
+				int globalTileOfs = ((cmd4 << 4) | (cmd3 << 12)) & 0xFFFF;
+				int tileData = (cmd2 >> 2) | ((cmd & 0x0F) << 6) | ((cmd & 0x30) << 10);
+				copyGlobalTile(globalTileBank, globalTileOfs, tileData & 0x1FF);
+				place(tileData);
+			} else if (cmd <= 0xDF) {
+				int count = (cmd & 0x0F) + 2;
+				int cmd2 = read();
+				int tileData = read() | ((cmd2 & 0x03) << 8) | ((cmd2 & 0x0C) << 12);
+				int tileStep = (cmd & 0x10) >> 4;
+				for (int i = 0; i < count; i++) {
+					if (tileStep != 0 && i > 0 && (tileData & 0x1FF) == 0) {
+						throw new AssertionError("0xD0 run steps past the last tile slot, at " + tilePos);
+					}
+					place(tileData);
+					tileData = (tileData + tileStep) & 0xFFFF;
+				}
+			} else if (cmd <= 0xEF) {
+				place(read() | ((cmd & 0x03) << 8) | ((cmd & 0x0C) << 12));
+			} else if (cmd == 0xF4) {
+				place(0);
+			} else if (cmd == 0xF5) {
+				place(1 << 9);
+			} else if (cmd == 0xF2) {
+				if (read() > DECODER_VERSION) {
+					return true;
+				}
+			} else if (cmd == 0xF3) {
+				int cmd2 = read();
+				int arg = read();
+				extendedCounts[cmd2]++;
+				if (cmd2 == 0x00) {
+					nextVblanks = arg;
+					return false;
+				} else if (cmd2 == 0x01 || cmd2 == 0x02) {
+					if (arg >= screenCache.length) {
+						throw new AssertionError("Screen cache slot " + arg + " does not exist");
+					}
+					if (cmd2 == 0x01) {
+						System.arraycopy(nextScreen, 0, screenCache[arg], 0, SCREEN_COPY_WORDS);
+					} else {
+						System.arraycopy(screenCache[arg], 0, nextScreen, 0, SCREEN_COPY_WORDS);
+					}
+				} else {
+					throw new AssertionError("Unknown extended command " + Integer.toHexString(cmd2));
+				}
+			} else if (cmd == 0xF1) {
+				bank++;
+				position = 0;
+			} else if (cmd == 0xF6) {
+				nextBorder = BORDER_WHITE;
+			} else if (cmd == 0xF7) {
+				nextBorder = BORDER_BLACK;
+			} else if (cmd >= 0xF8) {
+				nextVblanks = cmd & 0x7;
+				return false;
+			} else if (cmd == 0xF0) {
+				return true;
+			} else {
+				throw new AssertionError("Unknown command " + Integer.toHexString(cmd) + " at " + ((bank << 16) + position - 1));
+			}
+		}
+	}
+
+	private byte[] render(int[] screen) {
+		byte[] shades = new byte[tileWidth * tileHeight * 64];
+		int width = tileWidth * 8;
+		for (int ty = 0; ty < tileHeight; ty++) {
+			for (int tx = 0; tx < tileWidth; tx++) {
+				int entry = screen[ty * SCREEN_WIDTH + tx];
+				int slot = entry & 0x1FF;
+				int palette = switch ((entry >> 9) & 0x1F) {
+					case 0 -> PALETTE_0;
+					case 1 -> PALETTE_1;
+					default -> throw new AssertionError("Screen map entry " + Integer.toHexString(entry) + " at " + tx + ", " + ty + " uses an undefined palette");
+				};
+				for (int iy = 0; iy < 8; iy++) {
+					int row = (entry & 0x8000) != 0 ? 7 - iy : iy;
+					int lo = vram[slot * TILE_BYTES + row * 2] & 0xFF;
+					int hi = vram[slot * TILE_BYTES + row * 2 + 1] & 0xFF;
+					for (int ix = 0; ix < 8; ix++) {
+						int shift = (entry & 0x4000) != 0 ? ix : 7 - ix;
+						int color = ((lo >> shift) & 1) | (((hi >> shift) & 1) << 1);
+						shades[(ty * 8 + iy) * width + tx * 8 + ix] = (byte) ((palette >> (color * 4)) & 0xF);
+					}
+				}
+			}
+		}
+		return shades;
+	}
+
+	/**
+	 * @return The shades the decoder should show for a quantized 4-level image: the first palette's, as the stored
+	 * tiles are inverted.
+	 */
+	static byte[] getShades(QuantizedImage image) {
+		byte[] data = image.getData();
+		byte[] shades = new byte[data.length];
+		for (int i = 0; i < data.length; i++) {
+			shades[i] = (byte) ((PALETTE_0 >> ((3 - data[i]) * 4)) & 0xF);
+		}
+		return shades;
+	}
+}
@@ -0,0 +1,95 @@
+package pl.asie.bawsvq;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that the SIMD kernels produce the same output as the scalar ones, bit for bit; skipped where they are unavailable.
+ */
+public class PixelKernelsTest {
+	private static final int WIDTH = 72, HEIGHT = 40;
+	private static final Ditherer[] DITHERERS = {
+			null, new OrderedDitherer(OrderedDitherMatrix.MATRIX_4x4), new OrderedDitherer(OrderedDitherMatrix.MATRIX_8x8), ErrorDiffusionDitherer.FLOYD_STEINBERG
+	};
+
+	private static PixelKernels vector;
+
+	@BeforeAll
+	public static void loadVectorKernels() {
+		vector = PixelKernels.vector();
+	}
+
+	// noise, gradients and hard edges, each in patches
+	private static byte[] createSamples(Random random) {
+		byte[] samples = new byte[WIDTH * HEIGHT];
+		for (int iy = 0; iy < HEIGHT; iy++) {
+			for (int ix = 0; ix < WIDTH; ix++) {
+				samples[iy * WIDTH + ix] = (byte) switch ((ix / 9 + iy / 7) % 3) {
+					case 0 -> random.nextInt(256);
+					case 1 -> (ix * 7 + iy * 3) & 0xFF;
+					default -> (ix / 4 + iy / 4) % 2 == 0 ? 0 : 255;
+				};
+			}
+		}
+		return samples;
+	}
+
+	@Test
+	public void quantizeImageMatchesScalar() {
+		assumeTrue(vector != null, "SIMD kernels unavailable");
+		byte[] samples = createSamples(new Random(0x42415753L));
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		for (int i = 0; i < samples.length; i++) {
+			image.setRGB(i % WIDTH, i / WIDTH, (samples[i] & 0xFF) * 0x10101);
+		}
+		for (int steps : new int[] { 2, 4 }) {
+			for (Ditherer ditherer : DITHERERS) {
+				assertArrayEquals(new ImageQuantizer(WIDTH, HEIGHT, steps, ditherer, PixelKernels.scalar()).quantize(image).getData(),
+						new ImageQuantizer(WIDTH, HEIGHT, steps, ditherer, vector).quantize(image).getData(), steps + " steps, " + ditherer);
+			}
+		}
+	}
+
+	@Test
+	public void quantizeSamplesMatchesScalar() {
+		assumeTrue(vector != null, "SIMD kernels unavailable");
+		byte[] samples = createSamples(new Random(0x53515642L));
+		for (int steps : new int[] { 2, 4 }) {
+			for (Ditherer ditherer : DITHERERS) {
+				assertArrayEquals(new ImageQuantizer(WIDTH, HEIGHT, steps, ditherer, PixelKernels.scalar()).quantize(samples, ForkJoinPool.commonPool()).getData(),
+						new ImageQuantizer(WIDTH, HEIGHT, steps, ditherer, vector).quantize(samples, ForkJoinPool.commonPool()).getData(), steps + " steps, " + ditherer);
+			}
+		}
+	}
+
+	@Test
+	public void invertAndDiffMatchScalar() {
+		assumeTrue(vector != null, "SIMD kernels unavailable");
+		Random random = new Random(0x44494646L);
+		byte[] x = new byte[WIDTH * HEIGHT];
+		byte[] y = new byte[WIDTH * HEIGHT];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = (byte) random.nextInt(4);
+			y[i] = random.nextInt(16) == 0 ? (byte) random.nextInt(4) : x[i];
+		}
+
+		byte[] expected = new byte[x.length], actual = new byte[x.length];
+		PixelKernels.scalar().invert(x, expected, 4);
+		vector.invert(x, actual, 4);
+		assertArrayEquals(expected, actual);
+
+		long[] expectedDiff = new long[WIDTH / 8], actualDiff = new long[WIDTH / 8];
+		for (int iy = 0; iy < HEIGHT; iy++) {
+			PixelKernels.scalar().diffRow(x, y, iy * WIDTH, expectedDiff, WIDTH / 8);
+			vector.diffRow(x, y, iy * WIDTH, actualDiff, WIDTH / 8);
+		}
+		assertArrayEquals(expectedDiff, actualDiff);
+	}
+}